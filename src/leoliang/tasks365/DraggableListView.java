@@ -251,6 +251,10 @@ public class DraggableListView extends ListView {
         mDropListener = l;
     }
 
+    public boolean isDragging() {
+        return dragging != null;
+    }
+
     public interface DropListener {
         void drop(int from, int to);
     }
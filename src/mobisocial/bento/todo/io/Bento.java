@@ -17,6 +17,7 @@
 package mobisocial.bento.todo.io;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import mobisocial.bento.todo.ui.TodoListItem;
 
@@ -27,8 +28,102 @@ public class Bento {
 	public String creContactId;
 	public int numberOfTodo;
 	public ArrayList<TodoListItem> todoList;
+	// uuid -> position in todoList, built on demand. A built map is never
+	// changed, so copies share it until the order of their list changes.
+	private volatile HashMap<String, Integer> mPositions = null;
 	
 	public Bento() {
 		todoList = new ArrayList<TodoListItem>();
 	}
+	
+	// Copy for the next version of a published Bento, todo items are shared
+	public Bento(Bento src) {
+		uuid = src.uuid;
+		name = src.name;
+		creContactId = src.creContactId;
+		numberOfTodo = src.numberOfTodo;
+		todoList = new ArrayList<TodoListItem>(src.todoList);
+		mPositions = src.mPositions;
+	}
+	
+	public int indexOf(String uuid) {
+		HashMap<String, Integer> positions = mPositions;
+		if (positions == null) {
+			positions = new HashMap<String, Integer>(todoList.size() * 4 / 3 + 1);
+			for (int i = 0; i < todoList.size(); i++) {
+				positions.put(todoList.get(i).uuid, i);
+			}
+			mPositions = positions;
+		}
+		
+		Integer position = positions.get(uuid);
+		return (position != null) ? position : -1;
+	}
+	
+	public TodoListItem getTodo(String uuid) {
+		int position = indexOf(uuid);
+		return (position >= 0) ? todoList.get(position) : null;
+	}
+	
+	// Todo items are kept in rank key order, ties broken by uuid, so every
+	// member ends up with the same order whatever order ops arrive in.
+	public static int compareOrder(TodoListItem item1, TodoListItem item2) {
+		String rank1 = (item1.rank != null) ? item1.rank : "";
+		String rank2 = (item2.rank != null) ? item2.rank : "";
+		int ret = rank1.compareTo(rank2);
+		if (ret == 0) {
+			ret = item1.uuid.compareTo(item2.uuid);
+		}
+		return ret;
+	}
+	
+	// where item belongs in todoList by its rank key
+	public int orderPosition(TodoListItem item) {
+		int low = 0;
+		int high = todoList.size();
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (compareOrder(todoList.get(mid), item) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	// rank key for an item inserted at position
+	public String rankAt(int position) {
+		String low = (position > 0) ? todoList.get(position - 1).rank : null;
+		String high = (position < todoList.size()) ? todoList.get(position).rank : null;
+		return RankKey.between(low, high);
+	}
+	
+	// Gives items keys following the list order when some have none or
+	// they are out of order, e.g. a state posted by an older version.
+	// Only for a Bento just read, items are changed in place.
+	public void normalizeRanks() {
+		boolean bOrdered = true;
+		for (int i = 0; i < todoList.size(); i++) {
+			if (todoList.get(i).rank == null
+					|| (i > 0 && compareOrder(todoList.get(i - 1), todoList.get(i)) >= 0)) {
+				bOrdered = false;
+				break;
+			}
+		}
+		if (bOrdered) {
+			return;
+		}
+		
+		String[] ranks = RankKey.sequence(todoList.size());
+		for (int i = 0; i < todoList.size(); i++) {
+			todoList.get(i).rank = ranks[i];
+		}
+	}
+	
+	// Call after todo items are added, removed or moved in todoList.
+	// Replacing an item with one of the same uuid keeps the positions.
+	public void invalidatePositions() {
+		mPositions = null;
+	}
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import mobisocial.bento.todo.ui.TodoListItem;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keys of the state and delta json posted in todobento and appstate objs,
+ * and the todo item conversions shared by BentoManager and BentoOperation.
+ * Plain Java, nothing here touches the platform.
+ */
+public final class BentoJson {
+	// root > state
+	public static final String STATE = "state";
+	// root > state > bento
+	public static final String VERSION_CODE = "version_code";
+	public static final String BENTO = "bento";
+	public static final String BENTO_UUID = "uuid";
+	public static final String BENTO_NAME = "name";
+	public static final String BENTO_CRE_CONTACT_ID = "cre_contact_id";
+	// root > state > bento > todo array
+	public static final String TODO_LIST = "list";
+	public static final String TODO_UUID = "uuid";
+	public static final String TODO_TITLE = "title";
+	public static final String TODO_DESCRIPTION = "description";
+	public static final String TODO_HAS_IMG = "has_image";
+	public static final String TODO_IMAGE_HASH = "image_hash";
+	public static final String TODO_DONE = "done";
+	public static final String TODO_CRE_DATE = "cre_date";
+	public static final String TODO_MOD_DATE = "mod_date";
+	public static final String TODO_CRE_CONTACT_ID = "cre_contact_id";
+	public static final String TODO_MOD_CONTACT_ID = "mod_contact_id";
+	public static final String TODO_RANK = "rank";
+	public static final String TODO_RANK_DATE = "rank_date";
+	// root > delta
+	public static final String DELTA = "delta";
+	public static final String DELTA_BENTO_UUID = "bento_uuid";
+	// root > delta > ops array
+	public static final String DELTA_OPS = "ops";
+	public static final String OP_TYPE = "op";
+	public static final String OP_UUID = "uuid";
+	public static final String OP_TODO = "todo";
+	public static final String OP_AFTER = "after";
+
+	private BentoJson() {
+	}
+
+	static void fetchTodoObj(JSONObject todoObj, TodoListItem item) {
+		item.uuid = todoObj.optString(TODO_UUID);
+		item.title = todoObj.optString(TODO_TITLE);
+		item.description = todoObj.optString(TODO_DESCRIPTION);
+		item.hasImage = todoObj.optBoolean(TODO_HAS_IMG);
+		item.imageHash = todoObj.optString(TODO_IMAGE_HASH, null);
+		item.bDone = todoObj.optBoolean(TODO_DONE);
+		item.creDateMillis = todoObj.optLong(TODO_CRE_DATE);
+		item.modDateMillis = todoObj.optLong(TODO_MOD_DATE);
+		item.creContactId = todoObj.optString(TODO_CRE_CONTACT_ID);
+		item.modContactId = todoObj.optString(TODO_MOD_CONTACT_ID);
+		item.rank = todoObj.optString(TODO_RANK, null);
+		item.rankDateMillis = todoObj.optLong(TODO_RANK_DATE);
+	}
+
+	static JSONObject getTodoObj(TodoListItem item) throws JSONException {
+		JSONObject todoObj = new JSONObject();
+		todoObj.put(TODO_UUID, item.uuid);
+		todoObj.put(TODO_TITLE, item.title);
+		todoObj.put(TODO_DESCRIPTION, item.description);
+		todoObj.put(TODO_HAS_IMG, item.hasImage);
+		if (item.imageHash != null) {
+			todoObj.put(TODO_IMAGE_HASH, item.imageHash);
+		}
+		todoObj.put(TODO_DONE, item.bDone);
+		todoObj.put(TODO_CRE_DATE, item.creDateMillis);
+		todoObj.put(TODO_MOD_DATE, item.modDateMillis);
+		todoObj.put(TODO_CRE_CONTACT_ID, item.creContactId);
+		todoObj.put(TODO_MOD_CONTACT_ID, item.modContactId);
+		todoObj.put(TODO_RANK, item.rank);
+		todoObj.put(TODO_RANK_DATE, item.rankDateMillis);
+		return todoObj;
+	}
+}
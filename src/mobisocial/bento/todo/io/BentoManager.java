@@ -16,14 +16,27 @@
 
 package mobisocial.bento.todo.io;
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import mobisocial.bento.todo.R;
 import mobisocial.bento.todo.ui.BentoListItem;
 import mobisocial.bento.todo.ui.TodoListItem;
 import mobisocial.bento.todo.util.BitmapHelper;
+import mobisocial.bento.todo.util.BitmapPool;
+import mobisocial.bento.todo.util.DiskImageCache;
+import mobisocial.bento.todo.util.ImageCache;
 import mobisocial.bento.todo.util.UIUtils;
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.musubi.DbFeed;
@@ -39,11 +52,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.content.ContentResolver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.Debug;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
@@ -52,61 +68,106 @@ public class BentoManager {
     public interface OnStateUpdatedListener {
         public void onStateUpdated();
     }
+    
+    public interface OnMemberNamesUpdatedListener {
+        public void onMemberNamesUpdated();
+    }
 
 	public static final String TYPE_TODOBENTO = "todobento";
 	public static final String TYPE_APPSTATE = "appstate";
 	public static final String FEED_NAME = "name";
 
-	// root > state
-	public static final String STATE = "state";
-	// root > state > bento
-	public static final String VERSION_CODE = "version_code";
-	public static final String BENTO = "bento";
-	public static final String BENTO_UUID = "uuid";
-	public static final String BENTO_NAME = "name";
-	public static final String BENTO_CRE_CONTACT_ID = "cre_contact_id";
-	// root > state > bento > todo array
-	public static final String TODO_LIST = "list";
-	public static final String TODO_UUID = "uuid";
-	public static final String TODO_TITLE = "title";
-	public static final String TODO_DESCRIPTION = "description";
-	public static final String TODO_HAS_IMG = "has_image";
-	public static final String TODO_DONE = "done";
-	public static final String TODO_CRE_DATE = "cre_date";
-	public static final String TODO_MOD_DATE = "mod_date";
-	public static final String TODO_CRE_CONTACT_ID = "cre_contact_id";
-	public static final String TODO_MOD_CONTACT_ID = "mod_contact_id";
 	// root > state > todo_image
 	public static final String TODO_IMAGE = "todo_image";
 	public static final String TODO_IMAGE_UUID = "todo_image_uuid";
+	// the same as BentoJson.TODO_IMAGE_HASH of the todos showing it
+	public static final String TODO_IMAGE_CONTENT_HASH = "todo_image_hash";
+	// mime type of the thumbnail, jpeg when missing
+	public static final String TODO_IMAGE_FORMAT = "todo_image_format";
 	public static final String B64JPGTHUMB = FeedRenderable.OBJ_B64_JPEG;
+	// string key of appstate objs holding a full state checkpoint,
+	// the state json ({"state":{...}}) is carried in the raw bytes and the
+	// delta of the batch in the json
+	public static final String SNAPSHOT_KEY = "snapshot";
+	// write a checkpoint after this many delta updates or bytes
+	public static final int SNAPSHOT_INTERVAL_UPDATES = 50;
+	public static final int SNAPSHOT_INTERVAL_BYTES = 64 * 1024;
+	// updates arriving within this window are posted together
+	public static final long DEFAULT_COALESCE_WINDOW_MILLIS = 2000;
+	// encoded size aimed at for a posted image, before base64
+	public static final int DEFAULT_IMAGE_MAX_BYTES = 32 * 1024;
+	// bentos loaded together by loadBentoList, bounded by sqlite's
+	// expression depth since each one adds a window to the selection
+	private static final int LOAD_BATCH_SIZE = 100;
+	// feeds whose member names are kept, and how long before they are
+	// resolved again in case someone left
+	private static final int MEMBER_NAME_CACHE_FEEDS = 64;
+	private static final long MEMBER_NAME_MAX_AGE_MILLIS = 10 * 60 * 1000;
+	// resized thumbnails under the app cache dir
+	private static final String THUMB_CACHE_DIR = "thumbs";
+	private static final long THUMB_CACHE_BYTES = 8 * 1024 * 1024;
 	
 	private class LatestObj {
-		public JSONObject json = null;
+		// todobento obj, and the obj holding the base state (-1 : itself)
+		public long localId = -1;
+		public long baseId = -1;
+		// raw json of the obj holding the base state
+		public String stateJson = null;
 		public int intKey = 0;
+		// raw json of delta objs newer than the base state, oldest first
+		public ArrayList<String> deltas = new ArrayList<String>();
+		public int deltaBytes = 0;
 	};
 	private static final Boolean DEBUG = UIUtils.isDebugMode();
 	private static final String TAG = "TodoDataManager";
 	private static BentoManager sInstance = null;
 	private Musubi mMusubi = null;
-	private Uri mCurrentUri = null;
-	private String mLocalContactId = null;
-	private String mLocalName = null;
+	private volatile Uri mCurrentUri = null;
+	private volatile String mLocalContactId = null;
+	private volatile String mLocalName = null;
     private Integer mLastInt = 0;
+    private int mUpdatesSinceSnapshot = 0;
+    private int mBytesSinceSnapshot = 0;
     private int mVersionCode = 0;
     private boolean mbFromMusubi = false;
     
-	private ArrayList<BentoListItem> mBentoList = new ArrayList<BentoListItem>();
-	private BentoListItem mBento = new BentoListItem();
-	private Map<Long, ArrayList<String>> mMemberNameCache = new HashMap<Long, ArrayList<String>>();
+	// Published snapshots. Readers take the reference without locking,
+	// writers build the next version under the manager lock and swap it in.
+	// A published list or Bento is never changed afterwards.
+	private volatile ArrayList<BentoListItem> mBentoList = new ArrayList<BentoListItem>();
+	private volatile BentoListItem mBento = new BentoListItem();
+	private final MemberNameCache mMemberNameCache =
+			new MemberNameCache(MEMBER_NAME_CACHE_FEEDS, MEMBER_NAME_MAX_AGE_MILLIS);
+	// member names are resolved on this thread, feeds being resolved are skipped
+	private final ExecutorService mMemberResolver = Executors.newSingleThreadExecutor();
+	private final HashSet<Long> mResolvingFeeds = new HashSet<Long>();
+	// bentos whose image index was caught up since opened, see backfillImageIndex
+	private final HashSet<Long> mBackfilledBentos = new HashSet<Long>();
     private ArrayList<OnStateUpdatedListener> mListenerList = new ArrayList<OnStateUpdatedListener>();
+    private ArrayList<OnMemberNamesUpdatedListener> mMemberListenerList = new ArrayList<OnMemberNamesUpdatedListener>();
+    private ArrayList<BentoOperation> mPendingOps = new ArrayList<BentoOperation>();
+    private BentoStateWriter mStateWriter = new BentoStateWriter();
+    private ArrayList<String> mPendingMsgs = new ArrayList<String>();
+    private long mCoalesceWindowMillis = DEFAULT_COALESCE_WINDOW_MILLIS;
+    private volatile int mImageMaxBytes = DEFAULT_IMAGE_MAX_BYTES;
+    // main thread : coalescing timer and member name notifications
+    private Handler mFlushHandler = new Handler(Looper.getMainLooper());
+    private int mUpdateCount = 0;
+    private int mPostedUpdateCount = 0;
+    private int mPostCount = 0;
+    // every Musubi write goes through this single ordered writer thread
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    private PostTask mPendingTask = null;
+    private FutureTask<Boolean> mPendingFuture = null;
+    private BentoSummaryDb mSummaryDb = null;
+    private DiskImageCache mThumbCache = null;
 
 	// ----------------------------------------------------------
 	// Instance
 	// ----------------------------------------------------------
-	private BentoManager() {
+	// use getInstance(), tests make their own
+	BentoManager() {
 		mBento = null;
-		mMemberNameCache = null;
 	}
 
 	public static BentoManager getInstance() {
@@ -127,7 +188,12 @@ public class BentoManager {
 		mCurrentUri = null;
 		mBentoList = new ArrayList<BentoListItem>();
 		mBento = null;
-		mMemberNameCache = null;
+		mMemberNameCache.clear();
+		mFlushHandler.removeCallbacks(mFlushRunnable);
+		mPendingOps.clear();
+		mPendingMsgs.clear();
+		mPendingTask = null;
+		mPendingFuture = null;
 	}
 
 	public void setMusubi(Musubi musubi, int versionCode) {
@@ -145,128 +211,302 @@ public class BentoManager {
 	// ----------------------------------------------------------
 	// Get / Retrieve
 	// ----------------------------------------------------------
-	synchronized public boolean hasBento() {
+	// Readers don't lock. Read the snapshot once with getBentoListItem()
+	// when several calls have to agree with each other.
+	public boolean hasBento() {
 		return (mBento != null);
 	}
 	
-	synchronized public BentoListItem getBentoListItem() {
+	public BentoListItem getBentoListItem() {
 		return mBento;
 	}
 	
-	synchronized public TodoListItem getTodoListItem(int position) {
+	public TodoListItem getTodoListItem(int position) {
 		return mBento.bento.todoList.get(position);
 	}
 	
-	synchronized public TodoListItem getTodoListItem(String uuid) {
-		for (int i = 0; i < mBento.bento.todoList.size(); i++) {
-			TodoListItem item = mBento.bento.todoList.get(i);
-			if (item.uuid.equals(uuid)) {
-				return item;
-			}
-		}
-		
-		return null;
+	public TodoListItem getTodoListItem(String uuid) {
+		return mBento.bento.getTodo(uuid);
 	}
 
-	synchronized public int getTodoListCount() {
-		if (mBento != null) {
-			return mBento.bento.todoList.size();
+	public int getTodoListCount() {
+		BentoListItem bento = mBento;
+		if (bento != null) {
+			return bento.bento.todoList.size();
 		} else {
 			return 0;
 		}
 	}
 	
-	synchronized public Bitmap getTodoBitmap(String todoUuid,
+	public Bitmap getTodoBitmap(String imageKey,
 			int targetWidth, int targetHeight, float degrees) {
-		return getTodoBitmap(mCurrentUri, todoUuid, targetWidth, targetHeight, degrees);
+		return getTodoBitmap(mCurrentUri, imageKey, targetWidth, targetHeight, degrees);
 	}
 	
-	synchronized public Bitmap getTodoBitmap(Uri objUri, String todoUuid,
+	// no lock held : querying and decoding don't block other readers or writers
+	// Resized thumbnails are kept on disk, so they are decoded from the feed
+	// once and not again after a restart.
+	// imageKey is TodoListItem.getImageKey() : a content hash, shared by
+	// every todo showing the picture, or the todo uuid for older images.
+	public Bitmap getTodoBitmap(Uri objUri, String imageKey,
 			int targetWidth, int targetHeight, float degrees) {
-		Bitmap bitmap = null;
-		
-		DbFeed dbFeed = mMusubi.objForUri(objUri).getSubfeed();
-
-		Cursor c = dbFeed.query();
-		c.moveToFirst();
-		for (int i = 0; i < c.getCount(); i++) {
-			Obj object = mMusubi.objForCursor(c);
-			if (object != null && object.getJson() != null && object.getJson().has(TODO_IMAGE)) {
-				JSONObject diff = object.getJson().optJSONObject(TODO_IMAGE);
-				if (todoUuid.equals(diff.optString(TODO_IMAGE_UUID))) {
-					byte[] byteArray = Base64.decode(object.getJson().optString(B64JPGTHUMB), Base64.DEFAULT);
-					bitmap = BitmapFactory.decodeByteArray(byteArray, 0, byteArray.length);
-					break;
-				}
-			}
-			c.moveToNext();
+		String thumbKey = DiskImageCache.makeKey(imageKey, targetWidth, targetHeight, degrees);
+		Bitmap bitmap = getThumbCache().get(thumbKey);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		
+		boolean bHash = BitmapHelper.isImageHash(imageKey);
+		JSONObject imageJson = findTodoImageJson(imageKey, bHash);
+		// Not indexed : no image yet. The state observer indexes the image
+		// obj when it arrives and then has the listeners reload.
+		if (imageJson == null && objUri != null && backfillImageIndex(objUri)) {
+			imageJson = findTodoImageJson(imageKey, bHash);
+		}
+		
+		String b64Thumb = (imageJson != null) ? imageJson.optString(B64JPGTHUMB, null) : null;
+		if (b64Thumb != null && BitmapHelper.canDecode(getTodoImageFormat(imageJson))) {
+			// already at the target size
+			bitmap = BitmapHelper.decodeBase64Bitmap(b64Thumb, targetWidth, targetHeight);
 		}
-		c.close();
 
 		if (bitmap != null) {
-			bitmap = BitmapHelper.getResizedBitmap(bitmap, targetWidth, targetHeight, degrees);
+			if (degrees != 0) {
+				Bitmap decoded = bitmap;
+				bitmap = BitmapHelper.getResizedBitmap(decoded, targetWidth, targetHeight, degrees);
+				BitmapPool.put(decoded);
+			}
+			getThumbCache().put(thumbKey, bitmap);
 		}
 
 		return bitmap;
 	}
+	
+	// Json of an indexed image obj : one query by id, reading that obj only
+	// (the thumbnail has no column of its own).
+	private JSONObject fetchTodoImageJson(long imageObjId) {
+		JSONObject imageJson = null;
+		String[] projection = new String[] { DbObj.COL_JSON };
+		String selection = DbObj.COL_ID + "=?";
+		String[] selectionArgs = new String[] { String.valueOf(imageObjId) };
+		Cursor c = mMusubi.getContext().getContentResolver().query(
+				Musubi.uriForDir(DbThing.OBJECT), projection, selection, selectionArgs, null);
+		if (c == null) {
+			return null;
+		}
+		try {
+			if (c.moveToFirst()) {
+				imageJson = new JSONObject(c.getString(0));
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Failed to parse image obj", e);
+		} finally {
+			c.close();
+		}
+		return imageJson;
+	}
+	
+	// json of the indexed image obj, null when not indexed
+	private JSONObject findTodoImageJson(String imageKey, boolean bHash) {
+		long imageObjId = bHash ? getSummaryDb().getImageObjId(imageKey)
+				: getSummaryDb().getTodoImageObjId(imageKey);
+		if (imageObjId < 0) {
+			return null;
+		}
+		JSONObject imageJson = fetchTodoImageJson(imageObjId);
+		if (imageJson == null) {
+			// obj gone
+			if (bHash) {
+				getSummaryDb().removeImage(imageKey, imageObjId);
+			} else {
+				getSummaryDb().removeTodoImage(imageKey);
+			}
+		}
+		return imageJson;
+	}
+	
+	// Image objs seen before the index existed, or while nobody observed
+	// the bento : the first time an image of the bento is missing after it
+	// is opened, its image objs newer than the last scan are indexed in one
+	// query. Returns false when that was done already.
+	private boolean backfillImageIndex(Uri objUri) {
+		long parentId = mMusubi.objForUri(objUri).getLocalId();
+		synchronized (mBackfilledBentos) {
+			if (!mBackfilledBentos.add(parentId)) {
+				return false;
+			}
+			
+			long lastObjId = getSummaryDb().getImageBackfillObjId(parentId);
+			long newestObjId = lastObjId;
+			int count = 0;
+			String[] projection = new String[] { DbObj.COL_ID, DbObj.COL_JSON };
+			String selection = DbObj.COL_PARENT_ID + "=? and type=? and "
+					+ DbObj.COL_ID + ">? and " + DbObj.COL_JSON + " like ?";
+			String[] selectionArgs = new String[] { String.valueOf(parentId), TYPE_APPSTATE,
+					String.valueOf(lastObjId), "%" + TODO_IMAGE + "%" };
+			// newest first : thumbnails of a todo are dropped once, not for each older image
+			String sortOrder = DbObj.COL_ID + " desc";
+			Cursor c = mMusubi.getContext().getContentResolver().query(
+					Musubi.uriForDir(DbThing.OBJECT), projection, selection, selectionArgs, sortOrder);
+			if (c == null) {
+				return true;
+			}
+			try {
+				while (c.moveToNext()) {
+					newestObjId = Math.max(newestObjId, c.getLong(0));
+					try {
+						JSONObject json = new JSONObject(c.getString(1));
+						JSONObject todoImage = json.optJSONObject(TODO_IMAGE);
+						if (todoImage != null) {
+							indexTodoImage(todoImage, parentId, c.getLong(0));
+							count++;
+						}
+					} catch (JSONException e) {
+						Log.e(TAG, "Failed to parse image obj", e);
+					}
+				}
+			} finally {
+				c.close();
+			}
+			if (newestObjId > lastObjId) {
+				getSummaryDb().putImageBackfillObjId(parentId, newestObjId);
+			}
+			if (DEBUG) Log.d(TAG, "backfillImageIndex - bento:" + parentId + " after:" + lastObjId + " images:" + count);
+			return true;
+		}
+	}
+	
+	// objs posted before the format was recorded are jpeg
+	private String getTodoImageFormat(JSONObject imageJson) {
+		JSONObject todoImage = imageJson.optJSONObject(TODO_IMAGE);
+		return (todoImage != null) ? todoImage.optString(TODO_IMAGE_FORMAT, BitmapHelper.FORMAT_JPEG)
+				: BitmapHelper.FORMAT_JPEG;
+	}
+	
+	private void indexTodoImage(DbObj obj) {
+		JSONObject todoImage = obj.getJson().optJSONObject(TODO_IMAGE);
+		if (todoImage != null) {
+			indexTodoImage(todoImage, obj.getParentId(), obj.getLocalId());
+		}
+	}
+	
+	// by content hash, and by todo uuid for todos of older versions
+	private void indexTodoImage(JSONObject todoImage, Long parentId, long objId) {
+		if (todoImage.has(TODO_IMAGE_CONTENT_HASH) && parentId != null) {
+			// same hash, same bytes : nothing cached goes stale
+			getSummaryDb().putImage(todoImage.optString(TODO_IMAGE_CONTENT_HASH), parentId, objId);
+		}
+		if (todoImage.has(TODO_IMAGE_UUID)) {
+			String todoUuid = todoImage.optString(TODO_IMAGE_UUID);
+			if (getSummaryDb().putTodoImage(todoUuid, objId)) {
+				// thumbnails of the previous image
+				getThumbCache().removeAll(todoUuid);
+				ImageCache.removeImages(todoUuid);
+			}
+		}
+	}
 
-	synchronized public String getLocalContactId() {
+	public String getLocalContactId() {
 		return mLocalContactId;
 	}
 
-	synchronized public String getLocalName() {
+	public String getLocalName() {
 		return mLocalName;
 	}
 
 	// Bento List
-	synchronized public void loadBentoList() {
+	// Headers come from the summary index. Only bentos whose obj was
+	// modified since the last scan are re-read, with a fixed number of
+	// queries per LOAD_BATCH_SIZE bentos.
+	public void loadBentoList() {
+		long startMillis = SystemClock.uptimeMillis();
+		int queryCount = 1;
 		long prevFeedId = -1;
-        String[] projection = new String[] { DbObj.COL_ID, DbObj.COL_FEED_ID };
+        String[] projection = new String[] { DbObj.COL_ID, DbObj.COL_FEED_ID,
+        		DbObj.COL_LAST_MODIFIED_TIMESTAMP, DbObj.COL_INT_KEY };
         Uri uri = Musubi.uriForDir(DbThing.OBJECT);
         String selection = "type = ?";
         String[] selectionArgs = new String[] { TYPE_TODOBENTO };
         String sortOrder = DbObj.COL_FEED_ID + " asc, " + DbObj.COL_LAST_MODIFIED_TIMESTAMP + " asc";
-        
+
 		Cursor c = mMusubi.getContext().getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
 
-		ArrayList<BentoListItem> tmpList = new ArrayList<BentoListItem>();
+		HashMap<Long, BentoSummaryDb.Summary> summaries = getSummaryDb().getSummaries();
+		ArrayList<BentoListItem> objList = new ArrayList<BentoListItem>();
+		ArrayList<BentoSummaryDb.Summary> changedSummaries = new ArrayList<BentoSummaryDb.Summary>();
+		ArrayList<LatestObj> latestObjs = new ArrayList<LatestObj>();
 		if (c != null && c.moveToFirst()) {
-			mBentoList = new ArrayList<BentoListItem>();
-			
 			for (int i = 0; i < c.getCount(); i++) {
 				BentoListItem item = new BentoListItem();
-				item.bento = new Bento();
-				
 				DbObj dbObj = mMusubi.objForCursor(c);
-				LatestObj latestObj = null;
-				
-				latestObj = fetchLatestObj(c.getLong(0));
-				if (latestObj != null && latestObj.json.has(STATE)) {
-					JSONObject stateObj = latestObj.json.optJSONObject(STATE);
-					if (fetchBentoObj(stateObj, item.bento)) {
-						item.objUri = dbObj.getUri();
-						item.feedId = c.getLong(1);
-						if (DEBUG) {
-							Log.d(TAG, item.objUri.toString());
-							Log.d(TAG, item.feedId + "");
-						}
-					
-						// count number of todo
-						ArrayList<TodoListItem> todoList = new ArrayList<TodoListItem>();
-						if (fetchTodoListObj(stateObj, todoList)) {
-							item.bento.numberOfTodo = todoList.size();
-							tmpList.add(0, item);
-						}
-						
-						// load members
-						fetchMemberNames(item.feedId);
-					}
+				item.objUri = dbObj.getUri();
+				item.feedId = c.getLong(1);
+				objList.add(item);
+
+				long localId = c.getLong(0);
+				long lastModified = c.getLong(2);
+				BentoSummaryDb.Summary summary = summaries.remove(localId);
+				if (summary != null && summary.lastModified == lastModified) {
+					item.bento = summary.bento;
+				} else {
+					// the todobento obj is the base state until a checkpoint is found
+					summary = new BentoSummaryDb.Summary();
+					summary.objId = localId;
+					summary.feedId = item.feedId;
+					summary.lastModified = lastModified;
+					summary.bento = item.bento;
+					changedSummaries.add(summary);
+
+					LatestObj latestObj = new LatestObj();
+					latestObj.localId = localId;
+					latestObj.intKey = c.isNull(3) ? 0 : c.getInt(3);
+					latestObjs.add(latestObj);
 				}
 				c.moveToNext();
 			}
 		}
-		c.close();
+		if (c != null) {
+			c.close();
+		}
+
+		for (int start = 0; start < latestObjs.size(); start += LOAD_BATCH_SIZE) {
+			int end = Math.min(start + LOAD_BATCH_SIZE, latestObjs.size());
+			queryCount += fetchLatestObjs(latestObjs.subList(start, end));
+		}
+
+		// header and number of todo only
+		ArrayList<BentoSummaryDb.Summary> loadedSummaries = new ArrayList<BentoSummaryDb.Summary>();
+		for (int i = 0; i < changedSummaries.size(); i++) {
+			BentoSummaryDb.Summary summary = changedSummaries.get(i);
+			if (fetchLatestBento(latestObjs.get(i), summary.bento, true)) {
+				summary.bento.todoList = new ArrayList<TodoListItem>();
+				summary.bento.invalidatePositions();
+				loadedSummaries.add(summary);
+			} else {
+				summary.bento.uuid = null;
+			}
+		}
+		// what is left had its obj removed
+		getSummaryDb().update(loadedSummaries, summaries.keySet());
+
+		ArrayList<BentoListItem> tmpList = new ArrayList<BentoListItem>();
+		ArrayList<BentoListItem> bentoList = new ArrayList<BentoListItem>();
+		LinkedHashSet<Long> feedIds = new LinkedHashSet<Long>();
+		for (int i = 0; i < objList.size(); i++) {
+			BentoListItem item = objList.get(i);
+			if (item.bento.uuid != null) {
+				if (DEBUG) {
+					Log.d(TAG, item.objUri.toString());
+					Log.d(TAG, item.feedId + "");
+				}
+				tmpList.add(0, item);
+				feedIds.add(item.feedId);
+			}
+		}
 		
+		// load members in the background
+		prefetchMemberNames(feedIds);
+
 		// insert dividers
 		if (tmpList.size() > 0) {
 			for (int j = 0; j < tmpList.size(); j++) {
@@ -275,187 +515,482 @@ public class BentoManager {
 					BentoListItem divider = new BentoListItem();
 					divider.enabled = false;
 					divider.feedId = item.feedId;
-					mBentoList.add(divider);
-					
+					bentoList.add(divider);
+
 					prevFeedId = item.feedId;
 				}
-				mBentoList.add(item);
+				bentoList.add(item);
 			}
 		}
-		
+		mBentoList = bentoList;
+
 		if (DEBUG) {
-			Log.d(TAG, "tmpList:" + tmpList.size() + " mBentoList:" + mBentoList.size());
+			Log.d(TAG, "tmpList:" + tmpList.size() + " mBentoList:" + bentoList.size());
+			Log.d(TAG, "loadBentoList - bentos:" + objList.size() + " re-read:" + changedSummaries.size()
+					+ " queries:" + queryCount
+					+ " ms:" + (SystemClock.uptimeMillis() - startMillis));
 		}
 	}
-	
+
+	// Base state and later objs for a batch of bentos. The base is the
+	// latest checkpoint, or the todobento obj itself when there is none.
+	// Returns the number of queries, at most three.
+	private int fetchLatestObjs(List<LatestObj> batch) {
+		int queryCount = 0;
+		HashMap<Long, LatestObj> bentoMap = new HashMap<Long, LatestObj>();
+		StringBuilder localIds = new StringBuilder();
+		for (LatestObj latestObj : batch) {
+			bentoMap.put(latestObj.localId, latestObj);
+			if (localIds.length() > 0) {
+				localIds.append(',');
+			}
+			localIds.append(latestObj.localId);
+		}
+
+        ContentResolver resolver = mMusubi.getContext().getContentResolver();
+        Uri uri = Musubi.uriForDir(DbThing.OBJECT);
+
+        // latest checkpoint of each bento, ids only
+        String[] projection = new String[] { DbObj.COL_PARENT_ID, DbObj.COL_ID, DbObj.COL_INT_KEY };
+        String selection = DbObj.COL_PARENT_ID + " in (" + localIds + ") and type=? and "
+        		+ DbObj.COL_STRING_KEY + "=?";
+        String[] selectionArgs = new String[] { TYPE_APPSTATE, SNAPSHOT_KEY };
+        String sortOrder = DbObj.COL_PARENT_ID + " asc, " + DbObj.COL_INT_KEY + " desc, " + DbObj.COL_ID + " desc";
+        HashMap<Long, LatestObj> stateMap = new HashMap<Long, LatestObj>();
+        Cursor c = resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        queryCount++;
+        try {
+        	long prevParentId = -1;
+        	while (c.moveToNext()) {
+        		long parentId = c.getLong(0);
+        		LatestObj latestObj = bentoMap.get(parentId);
+        		if (parentId == prevParentId || latestObj == null) {
+        			continue;
+        		}
+        		prevParentId = parentId;
+        		latestObj.baseId = c.getLong(1);
+        		latestObj.intKey = c.isNull(2) ? 0 : c.getInt(2);
+        	}
+        } finally {
+        	c.close();
+        }
+
+        // their base state
+        StringBuilder stateIds = new StringBuilder();
+        for (LatestObj latestObj : batch) {
+        	long stateId = (latestObj.baseId >= 0) ? latestObj.baseId : latestObj.localId;
+        	stateMap.put(stateId, latestObj);
+        	if (stateIds.length() > 0) {
+        		stateIds.append(',');
+        	}
+        	stateIds.append(stateId);
+        }
+        projection = new String[] { DbObj.COL_ID, DbObj.COL_RAW, DbObj.COL_JSON };
+        selection = DbObj.COL_ID + " in (" + stateIds + ")";
+        c = resolver.query(uri, projection, selection, null, null);
+        queryCount++;
+        try {
+        	while (c.moveToNext()) {
+        		LatestObj latestObj = stateMap.get(c.getLong(0));
+        		if (latestObj != null) {
+        			byte[] raw = c.isNull(1) ? null : c.getBlob(1);
+        			latestObj.stateJson = (raw != null) ? toUtf8String(raw) : c.getString(2);
+        		}
+        	}
+        } finally {
+        	c.close();
+        }
+
+        // objs after each base, one window per bento
+        StringBuilder windows = new StringBuilder();
+        for (LatestObj latestObj : batch) {
+        	if (windows.length() > 0) {
+        		windows.append(" or ");
+        	}
+        	windows.append('(').append(DbObj.COL_PARENT_ID).append('=').append(latestObj.localId)
+        			.append(" and (").append(DbObj.COL_INT_KEY).append('>').append(latestObj.intKey)
+        			.append(" or (").append(DbObj.COL_INT_KEY).append('=').append(latestObj.intKey)
+        			.append(" and ").append(DbObj.COL_ID).append('>').append(latestObj.baseId).append(")))");
+        }
+        projection = new String[] { DbObj.COL_PARENT_ID, DbObj.COL_JSON, DbObj.COL_INT_KEY };
+        selection = "type=? and (" + windows + ")";
+        selectionArgs = new String[] { TYPE_APPSTATE };
+        sortOrder = DbObj.COL_PARENT_ID + " asc, " + DbObj.COL_INT_KEY + " asc, " + DbObj.COL_ID + " asc";
+        c = resolver.query(uri, projection, selection, selectionArgs, sortOrder);
+        queryCount++;
+        try {
+        	while (c.moveToNext()) {
+        		LatestObj latestObj = bentoMap.get(c.getLong(0));
+        		if (latestObj != null) {
+        			replayObj(latestObj, c.getString(1), c.getInt(2));
+        		}
+        	}
+        } finally {
+        	c.close();
+        }
+
+        return queryCount;
+	}
+
 	private LatestObj fetchLatestObj(long localId) {
         Uri uri = Musubi.uriForDir(DbThing.OBJECT);
-        String[] projection = new String[] { DbObj.COL_JSON, DbObj.COL_INT_KEY };
-        String selection = DbObj.COL_PARENT_ID + "=? and type= ?";
-        String[] selectionArgs = new String[] { Long.toString(localId), TYPE_APPSTATE };
-        String sortOrder = DbObj.COL_INT_KEY + " desc limit 1";
+        String[] projection = new String[] { DbObj.COL_JSON, DbObj.COL_INT_KEY, DbObj.COL_ID, DbObj.COL_RAW };
+        String selection = DbObj.COL_PARENT_ID + "=? and type=? and " + DbObj.COL_STRING_KEY + "=?";
+        String[] selectionArgs = new String[] { Long.toString(localId), TYPE_APPSTATE, SNAPSHOT_KEY };
+        String sortOrder = DbObj.COL_INT_KEY + " desc, " + DbObj.COL_ID + " desc limit 1";
+        
+        // latest checkpoint, or the todobento obj itself
         Cursor c = mMusubi.getContext().getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
+        LatestObj latestObj = new LatestObj();
+        long checkpointId = -1;
         try {
-            if (c.moveToFirst()) {
-            	LatestObj latestObj = new LatestObj();
-            	try {
-					latestObj.json = new JSONObject(c.getString(0));
-				} catch (JSONException e) {
-					e.printStackTrace();
-				}
-            	latestObj.intKey = c.getInt(1);
-                return latestObj;
-            } else {
+        	if (!c.moveToFirst()) {
                 c.close();
                 selection = DbObj.COL_ID + "=?";
                 selectionArgs = new String[] { Long.toString(localId) };
-                c = mMusubi.getContext().getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
-                if (c.moveToFirst()) {
-                	LatestObj latestObj = new LatestObj();
-                	try {
-						latestObj.json = new JSONObject(c.getString(0));
-					} catch (JSONException e) {
-						e.printStackTrace();
-					}
-                	latestObj.intKey = c.getInt(1);
-                    return latestObj;
-                } else {
-                    return null;
+                c = mMusubi.getContext().getContentResolver().query(uri, projection, selection, selectionArgs, null);
+                if (!c.moveToFirst()) {
+                	return null;
                 }
+        	} else {
+        		checkpointId = c.getLong(2);
+        	}
+        	
+        	byte[] raw = c.isNull(3) ? null : c.getBlob(3);
+        	latestObj.stateJson = (raw != null) ? toUtf8String(raw) : c.getString(0);
+        	latestObj.intKey = c.isNull(1) ? 0 : c.getInt(1);
+        } finally {
+        	c.close();
+        }
+        
+        // replay later objs in int_key order
+        projection = new String[] { DbObj.COL_JSON, DbObj.COL_INT_KEY };
+        selection = DbObj.COL_PARENT_ID + "=? and type=? and (" + DbObj.COL_INT_KEY + ">? or ("
+        		+ DbObj.COL_INT_KEY + "=? and " + DbObj.COL_ID + ">?))";
+        selectionArgs = new String[] { Long.toString(localId), TYPE_APPSTATE,
+        		Integer.toString(latestObj.intKey), Integer.toString(latestObj.intKey), Long.toString(checkpointId) };
+        sortOrder = DbObj.COL_INT_KEY + " asc, " + DbObj.COL_ID + " asc";
+        c = mMusubi.getContext().getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
+        try {
+            while (c.moveToNext()) {
+            	replayObj(latestObj, c.getString(0), c.getInt(1));
             }
         } finally {
             c.close();
         }
+        
+        if (DEBUG) Log.d(TAG, "fetchLatestObj - replay:" + latestObj.deltas.size() + " bytes:" + latestObj.deltaBytes);
+        return latestObj;
     }
 	
-	synchronized public BentoListItem getBentoListItem(int position) {
+	// adds an obj later than the base, in int_key order
+	private void replayObj(LatestObj latestObj, String jsonString, int intKey) {
+    	if (jsonString == null) {
+    		return;
+    	}
+    	latestObj.intKey = intKey;
+    	
+    	int rootType = BentoStateReader.peekRoot(jsonString);
+    	if (rootType == BentoStateReader.ROOT_STATE) {
+    		// full state without checkpoint mark (older versions)
+    		latestObj.stateJson = jsonString;
+    		latestObj.deltas.clear();
+    		latestObj.deltaBytes = 0;
+    	} else if (rootType == BentoStateReader.ROOT_DELTA) {
+    		latestObj.deltas.add(jsonString);
+    		latestObj.deltaBytes += jsonString.length();
+    	}
+	}
+	
+	synchronized private DiskImageCache getThumbCache() {
+		if (mThumbCache == null) {
+			mThumbCache = new DiskImageCache(
+					new File(mMusubi.getContext().getApplicationContext().getCacheDir(), THUMB_CACHE_DIR),
+					THUMB_CACHE_BYTES);
+		}
+		return mThumbCache;
+	}
+	
+	synchronized private BentoSummaryDb getSummaryDb() {
+		if (mSummaryDb == null) {
+			mSummaryDb = new BentoSummaryDb(mMusubi.getContext().getApplicationContext());
+		}
+		return mSummaryDb;
+	}
+	
+	public BentoListItem getBentoListItem(int position) {
 		return mBentoList.get(position);
 	}
 
-	synchronized public int getBentoListCount() {
+	public int getBentoListCount() {
 		return mBentoList.size();
 	}
 	
+	// Returns cached names without blocking, null until they are resolved.
+	// OnMemberNamesUpdatedListener is called once they are.
 	public ArrayList<String> getMemberNames(long feedId) {
-		if (mMemberNameCache == null || !mMemberNameCache.containsKey(feedId)) {
-			fetchMemberNames(feedId);
-		}
+		ArrayList<Long> feedIds = new ArrayList<Long>(1);
+		feedIds.add(feedId);
+		prefetchMemberNames(feedIds);
 		return mMemberNameCache.get(feedId);
 	}
 	
-	private void fetchMemberNames(long feedId) {
-		if (mMemberNameCache == null) {
-			mMemberNameCache = new HashMap<Long, ArrayList<String>>();
+	// Resolves all feeds not cached yet, invalidated or too old, one after
+	// another on the member resolver thread.
+	public void prefetchMemberNames(Collection<Long> feedIds) {
+		final ArrayList<Long> resolveIds = new ArrayList<Long>();
+		synchronized (mResolvingFeeds) {
+			for (Long feedId : feedIds) {
+				if (mMemberNameCache.needsResolve(feedId) && mResolvingFeeds.add(feedId)) {
+					resolveIds.add(feedId);
+				}
+			}
+		}
+		if (resolveIds.isEmpty()) {
+			return;
 		}
 		
-		if (!mMemberNameCache.containsKey(feedId)) {
-			ArrayList<String> names = new ArrayList<String>();
-	        Uri feedUri = Musubi.uriForItem(DbThing.FEED, feedId);
-	        
-	    	List<DbIdentity> members = mMusubi.getFeed(feedUri).getMembers();
-	        for (int i = 0; i < members.size(); i++) {
-	            DbIdentity id = members.get(i);
-	            if (id != null) {
-	            	if (!id.isOwned()) {
-	            		// skip me
-	            		names.add(id.getName());
-	            	}
-	            }
-	        }
-	        
-	        mMemberNameCache.put(feedId, names);
+		mMemberResolver.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Long feedId : resolveIds) {
+					try {
+						ArrayList<String> names = fetchMemberNames(feedId);
+						ArrayList<String> prevNames = mMemberNameCache.get(feedId);
+						mMemberNameCache.put(feedId, names);
+						if (!names.equals(prevNames)) {
+							notifyMemberNamesUpdated();
+						}
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Failed to get members", e);
+					} finally {
+						synchronized (mResolvingFeeds) {
+							mResolvingFeeds.remove(feedId);
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	private ArrayList<String> fetchMemberNames(long feedId) {
+		ArrayList<String> names = new ArrayList<String>();
+        Uri feedUri = Musubi.uriForItem(DbThing.FEED, feedId);
+        
+    	List<DbIdentity> members = mMusubi.getFeed(feedUri).getMembers();
+        for (int i = 0; i < members.size(); i++) {
+            DbIdentity id = members.get(i);
+            if (id != null) {
+            	if (!id.isOwned()) {
+            		// skip me
+            		names.add(id.getName());
+            	}
+            }
+        }
+        
+        return names;
+	}
+	
+	// a post from someone not among the cached members means they changed
+	private void checkMemberNames(DbObj obj) {
+		DbIdentity sender = obj.getSender();
+		if (sender == null || sender.isOwned()) {
+			return;
 		}
+		
+		long feedId = obj.getContainingFeed().getLocalId();
+		ArrayList<String> names = mMemberNameCache.get(feedId);
+		if (names != null && !names.contains(sender.getName())) {
+			mMemberNameCache.invalidate(feedId);
+			ArrayList<Long> feedIds = new ArrayList<Long>(1);
+			feedIds.add(feedId);
+			prefetchMemberNames(feedIds);
+		}
+	}
+	
+	private void notifyMemberNamesUpdated() {
+		mFlushHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				for (OnMemberNamesUpdatedListener listener : mMemberListenerList) {
+					listener.onMemberNamesUpdated();
+				}
+			}
+		});
 	}
 
 	// ----------------------------------------------------------
 	// Update
 	// ----------------------------------------------------------
-	synchronized public void createBento(Bento bento, String msg) {
-		mBento = new BentoListItem();
-		mBento.bento = bento;
-		pushUpdate(msg, true);
+	// Update methods return immediately, the future completes once the
+	// (possibly coalesced) obj has been posted by the writer thread.
+	// Writers change a copy of the current Bento and publish it, callers
+	// must not change items after handing them in.
+	// The previous bento is left under the same lock the new one is
+	// published with : what is pending goes out to it first, and batches
+	// sealed before the insert is done find no uri, the writer resolves
+	// the new one once inserted.
+	synchronized public Future<Boolean> createBento(Bento bento, String msg) {
+		if (mCurrentUri != null) {
+			flushUpdates();
+			unregisterStateObserver(mCurrentUri);
+			mCurrentUri = null;
+		}
+		mUpdatesSinceSnapshot = 0;
+		mBytesSinceSnapshot = 0;
+		publishBento(bento);
+		return pushUpdate(msg, true);
 	}
 	
-	synchronized public void addTodo(TodoListItem item, Bitmap image, String msg) {
-		mBento.bento.todoList.add(0, item);
+	// with an image, call it off the main thread (see setTodoImage)
+	public Future<Boolean> addTodo(TodoListItem item, Bitmap image, String msg) {
+		Future<Boolean> future;
+		synchronized (this) {
+			Bento bento = editBento();
+			item.rank = bento.rankAt(0);
+			bento.todoList.add(0, item);
+			bento.invalidatePositions();
+			publishBento(bento);
+			mPendingOps.add(BentoOperation.add(item, null));
+			
+			future = pushUpdate(msg);
+		}
+		return (image == null) ? future : setTodoImage(item.uuid, image);
+	}
+
+	// The image of a todo, stored once under the hash of its encoded bytes :
+	// the todo refers to the hash, and the bytes are posted unless this
+	// bento holds them already. Encoding, hashing and the lookup run on the
+	// calling thread without the lock, call it off the main thread.
+	public Future<Boolean> setTodoImage(String todoUuid, Bitmap image) {
+		BitmapHelper.EncodedImage encoded = BitmapHelper.encodeImage(image, mImageMaxBytes);
+		String hash = BitmapHelper.hashImage(encoded.data);
+		Uri objUri = mCurrentUri;
+		boolean bStored = (objUri != null)
+				&& getSummaryDb().hasImage(hash, mMusubi.objForUri(objUri).getLocalId());
+		if (DEBUG) Log.d(TAG, "setTodoImage - hash:" + hash + " stored:" + bStored);
 		
-		if (image == null) {
-			pushUpdate(msg);
-		} else {
-			String data = Base64.encodeToString(BitmapHelper.bitmapToBytes(image), Base64.DEFAULT);
-			pushUpdate(msg, item.uuid, data, false);
+		return publishTodoImage(objUri, todoUuid, hash, bStored ? null : encoded);
+	}
+	
+	// encoded is null when the bento holds the bytes already
+	synchronized private Future<Boolean> publishTodoImage(Uri objUri, String todoUuid,
+			String hash, BitmapHelper.EncodedImage encoded) {
+		if (mBento == null || mBento.bento.indexOf(todoUuid) < 0 || objUri != mCurrentUri) {
+			// removed, or another bento is open by now
+			return completedFuture(false);
 		}
+		Bento bento = editBento();
+		int position = bento.indexOf(todoUuid);
+		TodoListItem item = new TodoListItem(bento.todoList.get(position));
+		item.hasImage = true;
+		item.imageHash = hash;
+		bento.todoList.set(position, item);
+		publishBento(bento);
+		mPendingOps.add(BentoOperation.update(item));
+		
+		// attached to the batch before it is sealed
+		addPendingUpdate(null);
+		if (encoded != null) {
+			mPendingTask.todoUuid = todoUuid;
+			mPendingTask.imageHash = hash;
+			mPendingTask.image = encoded;
+		}
+		// out right away, together with what is pending
+		return flushUpdates();
 	}
 
-	synchronized public void removeTodo(TodoListItem item, String msg) {
-		// not supported yet
+	synchronized public Future<Boolean> removeTodo(TodoListItem item, String msg) {
+		if (mBento == null || mBento.bento.indexOf(item.uuid) < 0) {
+			return completedFuture(false);
+		}
+
+		Bento bento = editBento();
+		bento.todoList.remove(bento.indexOf(item.uuid));
+		bento.invalidatePositions();
+		publishBento(bento);
+		mPendingOps.add(BentoOperation.remove(item.uuid));
+
+		return pushUpdate(msg);
 	}
 
-	synchronized public void updateTodo(TodoListItem updateItem, String msg) {
-		for (int i=0; i<mBento.bento.todoList.size(); i++) {
-			TodoListItem item = mBento.bento.todoList.get(i);
-			if (item.uuid.equals(updateItem.uuid)) {
-				mBento.bento.todoList.remove(i);
-				mBento.bento.todoList.add(i, updateItem);
-				break;
-			}
+	synchronized public Future<Boolean> updateTodo(TodoListItem updateItem, String msg) {
+		Bento bento = editBento();
+		int position = bento.indexOf(updateItem.uuid);
+		if (position >= 0) {
+			// same uuid at the same position, the copy keeps the index
+			bento.todoList.set(position, updateItem);
+			publishBento(bento);
+			mPendingOps.add(BentoOperation.update(updateItem));
 		}
 
-		pushUpdate(msg);
+		return pushUpdate(msg);
 	}
 
 	synchronized public void sortTodoList(int positionFrom, int positionTo) {
-		TodoListItem item = mBento.bento.todoList.get(positionFrom);
+		Bento bento = editBento();
+		TodoListItem item = bento.todoList.get(positionFrom);
 		
 		// debug
 		if (DEBUG) {
 			Log.d(TAG, "sortTodoList:BEFORE");
-			for (int i=0; i<mBento.bento.todoList.size(); i++) {
-				TodoListItem debugItem = mBento.bento.todoList.get(i);
+			for (int i=0; i<bento.todoList.size(); i++) {
+				TodoListItem debugItem = bento.todoList.get(i);
 				Log.d(TAG, i + ":" + debugItem.title);
 			}
 		}
 		
-		if (positionFrom < positionTo) {
-			mBento.bento.todoList.add((positionTo + 1), item);
-			mBento.bento.todoList.remove(positionFrom);
-		} else if (positionFrom > positionTo) {
-			mBento.bento.todoList.remove(positionFrom);
-			mBento.bento.todoList.add(positionTo, item);
+		if (positionFrom == positionTo) {
+			return;
 		}
+		
+		// only the moved todo gets a new rank key, which is all peers need
+		TodoListItem movedItem = new TodoListItem(item);
+		bento.todoList.remove(positionFrom);
+		movedItem.rank = bento.rankAt(positionTo);
+		movedItem.rankDateMillis = System.currentTimeMillis();
+		bento.todoList.add(bento.orderPosition(movedItem), movedItem);
+		bento.invalidatePositions();
+		publishBento(bento);
+		mPendingOps.add(BentoOperation.move(movedItem));
 
 		// debug
 		if (DEBUG) {
 			Log.d(TAG, "sortTodoList:AFTER");
-			for (int i=0; i<mBento.bento.todoList.size(); i++) {
-				TodoListItem debugItem = mBento.bento.todoList.get(i);
+			for (int i=0; i<bento.todoList.size(); i++) {
+				TodoListItem debugItem = bento.todoList.get(i);
 				Log.d(TAG, i + ":" + debugItem.title);
 			}
 		}
 	}
 
-	synchronized public void sortTodoCompleted(String msg) {
-		pushUpdate(msg);
+	synchronized public Future<Boolean> sortTodoCompleted(String msg) {
+		return pushUpdate(msg);
 	}
 
-	synchronized public void clearTodoDone(String msg) {
+	synchronized public Future<Boolean> clearTodoDone(String msg) {
 		int beforeCount = mBento.bento.todoList.size();
 		if (beforeCount == 0) {
-			return;
+			return completedFuture(false);
 		}
 		
 		// remove backward
+		Bento bento = editBento();
 		for (int i = (beforeCount - 1); i >= 0; i--) {
-			TodoListItem item = mBento.bento.todoList.get(i);
+			TodoListItem item = bento.todoList.get(i);
 			if (item.bDone) {
-				mBento.bento.todoList.remove(i);
+				bento.todoList.remove(i);
+				mPendingOps.add(BentoOperation.remove(item.uuid));
 			}
 		}
 		
 		// if updated
-		if (beforeCount > mBento.bento.todoList.size()) {
-			pushUpdate(msg);
+		if (beforeCount > bento.todoList.size()) {
+			bento.invalidatePositions();
+			publishBento(bento);
+			return pushUpdate(msg);
 		}
+		return completedFuture(false);
 	}
 
 	// ----------------------------------------------------------
@@ -468,6 +1003,14 @@ public class BentoManager {
 	public void removeListener(OnStateUpdatedListener listener){
 		mListenerList.remove(listener);
     }
+	
+	public void addMemberNamesListener(OnMemberNamesUpdatedListener listener){
+		mMemberListenerList.add(listener);
+    }
+	
+	public void removeMemberNamesListener(OnMemberNamesUpdatedListener listener){
+		mMemberListenerList.remove(listener);
+    }
 
 	// ----------------------------------------------------------
 	// Musubi
@@ -484,76 +1027,335 @@ public class BentoManager {
 		mMusubi.setFeed(mMusubi.getFeed(feedUri));
 	}
 	
-	public void pushUpdate(String msg) {
-		pushUpdate(msg, null, null, false);
+	public Future<Boolean> pushUpdate(String msg) {
+		return pushUpdate(msg, false);
+	}
+
+	synchronized public Future<Boolean> pushUpdate(String msg, boolean bFirst) {
+		if (bFirst) {
+			PostTask task = new PostTask();
+			task.bFirst = true;
+			task.bentoUuid = mBento.bento.uuid;
+			task.msg = msg;
+			task.stateObj = getStateObj();
+			return mWriter.submit(task);
+		}
+		
+		// write-behind : collect until the window passes
+		Future<Boolean> future = addPendingUpdate(msg);
+		
+		mFlushHandler.removeCallbacks(mFlushRunnable);
+		if (mCoalesceWindowMillis <= 0) {
+			postPendingUpdates();
+		} else {
+			mFlushHandler.postDelayed(mFlushRunnable, mCoalesceWindowMillis);
+		}
+		return future;
+	}
+	
+	// joins the pending batch, starting one if needed
+	private Future<Boolean> addPendingUpdate(String msg) {
+		mUpdateCount++;
+		if (mPendingFuture == null) {
+			mPendingTask = new PostTask();
+			mPendingFuture = new FutureTask<Boolean>(mPendingTask);
+		}
+		mPendingTask.updateCount++;
+		if (msg != null) {
+			mPendingMsgs.add(msg);
+		}
+		return mPendingFuture;
+	}
+	
+	synchronized public Future<Boolean> flushUpdates() {
+		mFlushHandler.removeCallbacks(mFlushRunnable);
+		return postPendingUpdates();
+	}
+	
+	synchronized public void setCoalesceWindow(long millis) {
+		mCoalesceWindowMillis = millis;
+	}
+	
+	public void setImageMaxBytes(int maxBytes) {
+		mImageMaxBytes = maxBytes;
+	}
+	
+	// number of updates requested by callers
+	synchronized public int getUpdateCount() {
+		return mUpdateCount;
+	}
+	
+	// number of appstate objs actually posted for them
+	synchronized public int getPostCount() {
+		return mPostCount;
+	}
+	
+	synchronized public int getPostsSaved() {
+		return mPostedUpdateCount - mPostCount;
 	}
 	
-	public void pushUpdate(String msg, boolean bFirst) {
-		pushUpdate(msg, null, null, bFirst);
+	private final Runnable mFlushRunnable = new Runnable() {
+		@Override
+		public void run() {
+			flushUpdates();
+		}
+	};
+	
+	// One obj to post. Prepared under the manager lock on the caller's
+	// thread, posted on the writer thread.
+	private class PostTask implements Callable<Boolean> {
+		public boolean bFirst = false;
+		public Uri objUri = null;
+		public String bentoUuid = null;
+		public String msg = null;
+		public JSONObject stateObj = null;
+		public JSONObject deltaObj = null;
+		public boolean bSnapshot = false;
+		public Bento bento = null;
+		public String todoUuid = null;
+		public String imageHash = null;
+		public BitmapHelper.EncodedImage image = null;
+		public int updateCount = 0;
+		
+		@Override
+		public Boolean call() {
+			return postUpdate(this);
+		}
+	}
+	
+	private static Future<Boolean> completedFuture(final boolean result) {
+		FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return result;
+			}
+		});
+		future.run();
+		return future;
+	}
+	
+	// seals the pending batch and hands it to the writer
+	private Future<Boolean> postPendingUpdates() {
+		if (mPendingFuture == null) {
+			return completedFuture(false);
+		}
+		PostTask task = mPendingTask;
+		FutureTask<Boolean> future = mPendingFuture;
+		mPendingTask = null;
+		mPendingFuture = null;
+		
+		// one feed message for the whole batch
+		int count = mPendingMsgs.size();
+		if (count == 1) {
+			task.msg = mPendingMsgs.get(0);
+		} else if (count > 1) {
+			task.msg = mPendingMsgs.get(count - 1) + "\n" + mMusubi.getContext().getResources()
+					.getQuantityString(R.plurals.feed_msg_more, count - 1, count - 1);
+		}
+		mPendingMsgs.clear();
+		
+		if (mBento == null || (mPendingOps.isEmpty() && task.image == null)) {
+			if (DEBUG) Log.d(TAG, "postPendingUpdates - nothing to post");
+			mPendingOps.clear();
+			// nothing to write, completes as not posted
+			future.run();
+			return future;
+		}
+		
+		try {
+			// while a new bento is being inserted, the writer resolves its uri
+			task.objUri = mCurrentUri;
+			task.bentoUuid = mBento.bento.uuid;
+			task.deltaObj = getDeltaObj();
+			task.bSnapshot = countDelta(task.deltaObj.toString().length());
+			if (task.bSnapshot) {
+				// the version this batch ends at, later ops belong to the next one
+				task.bento = mBento.bento;
+			}
+		} catch (JSONException e) {
+			Log.e(TAG, "Failed to put JSON", e);
+		}
+		mPendingOps.clear();
+		
+		mWriter.execute(future);
+		return future;
 	}
 
-	public void pushUpdate(String msg, String todoUuid, String data, boolean bFirst) {
+	// runs on the writer thread
+	private boolean postUpdate(PostTask task) {
+		if (!task.bFirst && task.deltaObj == null && task.image == null) {
+			return false;
+		}
+		
 		try {
-			JSONObject rootObj = new JSONObject();
-			rootObj.put(Obj.FIELD_RENDER_TYPE, Obj.RENDER_LATEST);
-			rootObj.put(STATE, getStateObj());
-			if (DEBUG) Log.d(TAG, "pushUpdate - getStateObj():" + getStateObj().toString());
+			Uri objUri = task.objUri;
+			if (!task.bFirst && objUri == null) {
+				synchronized (this) {
+					if (isValidBento(task.bentoUuid)) {
+						objUri = mCurrentUri;
+					}
+				}
+				if (objUri == null) {
+					return false;
+				}
+			}
+			
+			JSONObject out = new JSONObject();
+			out.put(Obj.FIELD_RENDER_TYPE, Obj.RENDER_LATEST);
 			
-			JSONObject out = new JSONObject(rootObj.toString());
+			byte[] raw = null;
+			if (task.bFirst) {
+				// the todobento obj always carries the full state
+				out.put(BentoJson.STATE, task.stateObj);
+				if (DEBUG) Log.d(TAG, "postUpdate - state:" + task.stateObj.toString());
+			} else {
+				if (task.bSnapshot) {
+					// checkpoint : full state which loaders start replaying from,
+					// streamed into raw bytes without building a json tree.
+					// The Bento sealed with the batch is immutable, only the
+					// writer buffer is ours.
+					if (task.bento != null) {
+						synchronized (mStateWriter) {
+							if (DEBUG) {
+								Debug.resetThreadAllocCount();
+								Debug.startAllocCounting();
+							}
+							raw = mStateWriter.write(task.bento, mVersionCode).toByteArray();
+							if (DEBUG) {
+								Debug.stopAllocCounting();
+								Log.d(TAG, "postUpdate - snapshot bytes:" + raw.length
+										+ " allocs:" + Debug.getThreadAllocCount()
+										+ " alloc bytes:" + Debug.getThreadAllocSize());
+							}
+						}
+					}
+				}
+				// checkpoints carry the delta of their batch too : peers already
+				// showing the bento apply it instead of taking over our state
+				if (task.deltaObj != null) {
+					out.put(BentoJson.DELTA, task.deltaObj);
+					if (DEBUG) Log.d(TAG, "postUpdate - delta:" + task.deltaObj.toString());
+				}
+			}
 
-			if (todoUuid != null && data != null) {
+			if (task.todoUuid != null && task.image != null) {
+				String data = Base64.encodeToString(task.image.data, Base64.DEFAULT);
 				JSONObject todoImageObj = new JSONObject();
-				todoImageObj.put(TODO_IMAGE_UUID, todoUuid);
+				// the uuid for older versions, which look images up by todo
+				todoImageObj.put(TODO_IMAGE_UUID, task.todoUuid);
+				todoImageObj.put(TODO_IMAGE_CONTENT_HASH, task.imageHash);
+				todoImageObj.put(TODO_IMAGE_FORMAT, task.image.format);
 				out.put(TODO_IMAGE, todoImageObj);
 				out.put(B64JPGTHUMB, data);
 			}
 			
-			FeedRenderable renderable = FeedRenderable.fromText(msg);
-			renderable.addToJson(out);
-			if (bFirst) {
+			if (task.msg != null) {
+				FeedRenderable renderable = FeedRenderable.fromText(task.msg);
+				renderable.addToJson(out);
+			}
+			if (task.bFirst) {
 				Obj obj = new MemObj(TYPE_TODOBENTO, out, null);
-				Uri bentoUri = mMusubi.getFeed().insert(obj);
-				setBentoObjUri(bentoUri);
+				Uri bentoUri = insertBentoObj(obj);
+				
+				// we already hold the state, only start observing
+				synchronized (this) {
+					if (isValidBento(task.bentoUuid)) {
+						mCurrentUri = bentoUri;
+						mLastInt = 0;
+						mUpdatesSinceSnapshot = 0;
+						mBytesSinceSnapshot = 0;
+					}
+				}
+				registerStateObserver(bentoUri);
 			} else {
-				Obj obj = new MemObj(TYPE_APPSTATE, out, null, ++mLastInt);
-				mMusubi.objForUri(mCurrentUri).getSubfeed().postObj(obj);
+				Obj obj = null;
+				synchronized (this) {
+					// int keys are handed out in posting order
+					obj = new MemObj(TYPE_APPSTATE, out, raw, ++mLastInt, (raw != null ? SNAPSHOT_KEY : null));
+				}
+				postStateObj(objUri, obj, task.image != null);
+				synchronized (this) {
+					mPostCount++;
+					mPostedUpdateCount += task.updateCount;
+					if (DEBUG) Log.d(TAG, "postUpdate - updates:" + mPostedUpdateCount + " posts:" + mPostCount);
+				}
 			}
+			return true;
 		} catch (JSONException e) {
 			Log.e(TAG, "Failed to post JSON", e);
 		}
+		return false;
+	}
+
+	// the todobento obj, in the current feed
+	Uri insertBentoObj(Obj obj) {
+		return mMusubi.getFeed().insert(obj);
+	}
+	
+	// an appstate obj, in the subfeed of the bento at objUri
+	void postStateObj(Uri objUri, Obj obj, boolean bImage) {
+		DbFeed subfeed = mMusubi.objForUri(objUri).getSubfeed();
+		if (bImage) {
+			// inserted right away to index the image by its obj id
+			Uri imageUri = subfeed.insert(obj);
+			if (imageUri != null) {
+				indexTodoImage(mMusubi.objForUri(imageUri));
+			}
+		} else {
+			subfeed.postObj(obj);
+		}
 	}
 
 	public void setBentoObjUri(Uri objUri) {
 		// previous uri
 		if (mCurrentUri != null) {
-			mMusubi.objForUri(mCurrentUri).getSubfeed().unregisterStateObserver(mStateObserver);
+			flushUpdates();
+			unregisterStateObserver(mCurrentUri);
 		}
         
-        // new uri
-		mCurrentUri = objUri;
-		
 		DbObj dbObj = mMusubi.objForUri(objUri);
 		Long localId = dbObj.getLocalId();
+		synchronized (mBackfilledBentos) {
+			// image objs may have come in while it was closed
+			mBackfilledBentos.remove(localId);
+		}
 		
 		LatestObj latestObj = null;
 		latestObj = fetchLatestObj(localId);
-		if (latestObj != null && latestObj.json.has(STATE)) {
-			JSONObject stateObj = latestObj.json.optJSONObject(STATE);
-
-			if (stateObj == null) {
-				mBento = null;
-				mLastInt = 0;
-			} else {
-				setNewStateObj(stateObj);
-				mLastInt = latestObj.intKey;
+		
+		synchronized (this) {
+	        // new uri
+			mCurrentUri = objUri;
+			
+			if (latestObj != null && latestObj.stateJson != null) {
+				Bento bento = new Bento();
+	
+				if (!fetchLatestBento(latestObj, bento, false)) {
+					mBento = null;
+					mLastInt = 0;
+				} else {
+					publishBento(bento);
+					mLastInt = latestObj.intKey;
+					mUpdatesSinceSnapshot = latestObj.deltas.size();
+					mBytesSinceSnapshot = latestObj.deltaBytes;
+				}
 			}
 		}
 
-		Uri feedUri = mMusubi.objForUri(mCurrentUri).getSubfeed().getUri();
+		registerStateObserver(objUri);
+	}
+	
+	void registerStateObserver(Uri objUri) {
+		DbFeed subfeed = mMusubi.objForUri(objUri).getSubfeed();
+		Uri feedUri = subfeed.getUri();
 		mLocalContactId = mMusubi.userForLocalDevice(feedUri).getId();
 		mLocalName = mMusubi.userForLocalDevice(feedUri).getName();
 		
-		mMusubi.objForUri(mCurrentUri).getSubfeed().registerStateObserver(mStateObserver);
+		subfeed.registerStateObserver(mStateObserver);
+	}
+	
+	void unregisterStateObserver(Uri objUri) {
+		mMusubi.objForUri(objUri).getSubfeed().unregisterStateObserver(mStateObserver);
 	}
 	
 	private final FeedObserver mStateObserver = new FeedObserver() {
@@ -561,12 +1363,19 @@ public class BentoManager {
 		public void onUpdate(DbObj obj) {
 			if (DEBUG) Log.d(TAG, "onUpdate:" + obj.toString());
 			
+			if (obj != null && obj.getJson() != null && obj.getJson().has(TODO_IMAGE)) {
+				indexTodoImage(obj);
+			}
+			
 			// ignore
-			if (obj == null || obj.getJson() == null || !obj.getJson().has(STATE)) {
+			if (obj == null || obj.getJson() == null
+					|| (!obj.getJson().has(BentoJson.STATE) && !obj.getJson().has(BentoJson.DELTA) && !isSnapshotObj(obj))) {
 				if (DEBUG) Log.d(TAG, "onUpdate: ignore-1");
 				return;
 			}
 
+			checkMemberNames(obj);
+			
 			// notify refresh (always)
 			Handler handler = new Handler();
 			handler.post(new Runnable(){
@@ -577,28 +1386,75 @@ public class BentoManager {
 				}
 			});
 			
-			if (mBento == null || mBento.bento == null) {
-				if (DEBUG) Log.d(TAG, "onUpdate: ignore-2");
-				return;
-			}
-			
-			JSONObject stateObj = null;
-			stateObj = obj.getJson().optJSONObject(STATE);
-			try {
-				if (!isValidBento(stateObj.getJSONObject(BENTO).optString(BENTO_UUID))) {
-					if (DEBUG) Log.d(TAG, "onUpdate: ignore-3");
+			synchronized (BentoManager.this) {
+				if (mBento == null || mBento.bento == null) {
+					if (DEBUG) Log.d(TAG, "onUpdate: ignore-2");
 					return;
 				}
-			} catch (JSONException e) {
-				Log.e(TAG, "Failed to get JSON", e);
-				return;
-			}
-
-			// set new state
-			setNewStateObj(stateObj);
 			
-			mLastInt = (obj.getIntKey() == null) ? 0 : obj.getIntKey();
-			if (DEBUG) Log.d(TAG, "onUpdate - mLastInt: " + mLastInt);
+				if (isSnapshotObj(obj) && !obj.getJson().has(BentoJson.DELTA)) {
+					// checkpoint of an older version, the state replaces ours
+					Bento bento = new Bento();
+					if (!BentoStateReader.readState(toUtf8String(obj.getRaw()), bento, false)
+							|| !isValidBento(bento.uuid)) {
+						if (DEBUG) Log.d(TAG, "onUpdate: ignore-3");
+						return;
+					}
+				
+					// set new state
+					reapplyPendingOps(bento);
+					publishBento(bento);
+					mUpdatesSinceSnapshot = 0;
+					mBytesSinceSnapshot = 0;
+				} else if (obj.getJson().has(BentoJson.DELTA)) {
+					JSONObject deltaObj = obj.getJson().optJSONObject(BentoJson.DELTA);
+					if (deltaObj == null || !isValidBento(deltaObj.optString(BentoJson.DELTA_BENTO_UUID))) {
+						if (DEBUG) Log.d(TAG, "onUpdate: ignore-3");
+						return;
+					}
+				
+					// apply operations to a copy of current state
+					Bento bento = editBento();
+					applyDeltaObj(deltaObj, bento);
+					// our edits still in the coalescing window win, as they will once posted
+					reapplyPendingOps(bento);
+					publishBento(bento);
+					if (isSnapshotObj(obj)) {
+						// loaders start from its state from now on
+						mUpdatesSinceSnapshot = 0;
+						mBytesSinceSnapshot = 0;
+					} else if (!isOwnObj(obj)) {
+						countDelta(deltaObj.toString().length());
+					}
+				} else {
+					JSONObject stateObj = null;
+					stateObj = obj.getJson().optJSONObject(BentoJson.STATE);
+					try {
+						if (!isValidBento(stateObj.getJSONObject(BentoJson.BENTO).optString(BentoJson.BENTO_UUID))) {
+							if (DEBUG) Log.d(TAG, "onUpdate: ignore-3");
+							return;
+						}
+					} catch (JSONException e) {
+						Log.e(TAG, "Failed to get JSON", e);
+						return;
+					}
+	
+					// set new state
+					Bento bento = new Bento();
+					fetchBentoObj(stateObj, bento);
+					fetchTodoListObj(stateObj, bento.todoList);
+					bento.normalizeRanks();
+					reapplyPendingOps(bento);
+					publishBento(bento);
+					mUpdatesSinceSnapshot = 0;
+					mBytesSinceSnapshot = 0;
+				}
+			
+				// never hand out an int key lower than one already posted
+				int intKey = (obj.getIntKey() == null) ? 0 : obj.getIntKey();
+				mLastInt = Math.max(mLastInt, intKey);
+				if (DEBUG) Log.d(TAG, "onUpdate - mLastInt: " + mLastInt);
+			}
 
 		}
 		
@@ -607,23 +1463,26 @@ public class BentoManager {
 	// ----------------------------------------------------------
 	// Private
 	// ----------------------------------------------------------
-	private void setNewStateObj(JSONObject stateObj) {
-		mBento = new BentoListItem();
-		setNewBentoObj(stateObj);
-		setNewTodoListObj(stateObj);
+	// copy of the current Bento to change, call with the lock held
+	private Bento editBento() {
+		return new Bento(mBento.bento);
 	}
 	
-	private void setNewBentoObj(JSONObject stateObj) {
-		fetchBentoObj(stateObj, mBento.bento);
+	// swaps in the next version, readers see the whole change or none of it
+	private void publishBento(Bento bento) {
+		BentoListItem item = new BentoListItem();
+		item.bento = bento;
+		bento.numberOfTodo = bento.todoList.size();
+		mBento = item;
 	}
 	
 	private boolean fetchBentoObj(JSONObject stateObj, Bento bento) {
 		boolean ret = false;
 		try {
-			JSONObject bentoObj = stateObj.getJSONObject(BENTO);
-			bento.uuid = bentoObj.optString(BENTO_UUID);
-			bento.name = bentoObj.optString(BENTO_NAME);
-			bento.creContactId = bentoObj.optString(BENTO_CRE_CONTACT_ID);
+			JSONObject bentoObj = stateObj.getJSONObject(BentoJson.BENTO);
+			bento.uuid = bentoObj.optString(BentoJson.BENTO_UUID);
+			bento.name = bentoObj.optString(BentoJson.BENTO_NAME);
+			bento.creContactId = bentoObj.optString(BentoJson.BENTO_CRE_CONTACT_ID);
 			
 			ret = true;
 		} catch (JSONException e) {
@@ -633,30 +1492,17 @@ public class BentoManager {
 		return ret;
 	}
 	
-	private void setNewTodoListObj(JSONObject stateObj) {
-		mBento.bento.todoList = new ArrayList<TodoListItem>();
-		fetchTodoListObj(stateObj, mBento.bento.todoList);
-	}
-
 	private boolean fetchTodoListObj(JSONObject stateObj, ArrayList<TodoListItem> todoList) {
 		boolean ret = false;
 		try {
-			JSONArray todoListArray = stateObj.optJSONArray(TODO_LIST);
+			JSONArray todoListArray = stateObj.optJSONArray(BentoJson.TODO_LIST);
 			
 			if (todoListArray != null) {
 				
 				for (int i=0; i<todoListArray.length(); i++) {
 					JSONObject todoObj = todoListArray.getJSONObject(i);
 					TodoListItem item = new TodoListItem();
-					item.uuid = todoObj.optString(TODO_UUID);
-					item.title = todoObj.optString(TODO_TITLE);
-					item.description = todoObj.optString(TODO_DESCRIPTION);
-					item.hasImage = todoObj.optBoolean(TODO_HAS_IMG);
-					item.bDone = todoObj.optBoolean(TODO_DONE);
-					item.creDateMillis = todoObj.optLong(TODO_CRE_DATE);
-					item.modDateMillis = todoObj.optLong(TODO_MOD_DATE);
-					item.creContactId = todoObj.optString(TODO_CRE_CONTACT_ID);
-					item.modContactId = todoObj.optString(TODO_MOD_CONTACT_ID);
+					BentoJson.fetchTodoObj(todoObj, item);
 					
 					todoList.add(item);
 				}
@@ -670,13 +1516,107 @@ public class BentoManager {
 		return ret;
 	}
 	
+	// Decodes base state and replays deltas straight from the json strings.
+	// In header only mode, todo items are materialized only when deltas
+	// need them for an exact count.
+	private boolean fetchLatestBento(LatestObj latestObj, Bento bento, boolean bHeaderOnly) {
+		if (latestObj.stateJson == null) {
+			return false;
+		}
+		
+		boolean bCountOnly = bHeaderOnly && latestObj.deltas.isEmpty();
+		if (!BentoStateReader.readState(latestObj.stateJson, bento, bCountOnly)) {
+			return false;
+		}
+		
+		if (!bCountOnly) {
+			ArrayList<BentoOperation> ops = new ArrayList<BentoOperation>();
+			for (String json : latestObj.deltas) {
+				ops.clear();
+				String bentoUuid = BentoStateReader.readDelta(json, ops);
+				if (bento.uuid != null && bento.uuid.equals(bentoUuid)) {
+					for (BentoOperation op : ops) {
+						op.apply(bento);
+					}
+				}
+			}
+			bento.numberOfTodo = bento.todoList.size();
+		}
+		return true;
+	}
+	
+	private void applyDeltaObj(JSONObject deltaObj, Bento bento) {
+		JSONArray opsArray = deltaObj.optJSONArray(BentoJson.DELTA_OPS);
+		if (opsArray == null) {
+			return;
+		}
+		
+		for (int i = 0; i < opsArray.length(); i++) {
+			JSONObject opObj = opsArray.optJSONObject(i);
+			BentoOperation op = (opObj == null) ? null : BentoOperation.fromJson(opObj);
+			if (op != null) {
+				op.apply(bento);
+			}
+		}
+	}
+	
+	// returns true when the next post should be a checkpoint
+	private boolean countDelta(int bytes) {
+		mUpdatesSinceSnapshot++;
+		mBytesSinceSnapshot += bytes;
+		if (mUpdatesSinceSnapshot >= SNAPSHOT_INTERVAL_UPDATES
+				|| mBytesSinceSnapshot >= SNAPSHOT_INTERVAL_BYTES) {
+			mUpdatesSinceSnapshot = 0;
+			mBytesSinceSnapshot = 0;
+			return true;
+		}
+		return false;
+	}
+	
+	// local changes not posted yet survive a remote state replacing ours
+	private void reapplyPendingOps(Bento bento) {
+		for (BentoOperation op : mPendingOps) {
+			op.apply(bento);
+		}
+	}
+	
+	private boolean isSnapshotObj(DbObj obj) {
+		return (SNAPSHOT_KEY.equals(obj.getStringKey()) && obj.getRaw() != null);
+	}
+	
+	private static String toUtf8String(byte[] raw) {
+		try {
+			return new String(raw, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return new String(raw);
+		}
+	}
+	
+	private boolean isOwnObj(DbObj obj) {
+		DbIdentity sender = obj.getSender();
+		return (sender != null && sender.isOwned());
+	}
+	
+	private JSONObject getDeltaObj() throws JSONException {
+		JSONObject deltaObj = new JSONObject();
+		deltaObj.put(BentoJson.DELTA_BENTO_UUID, mBento.bento.uuid);
+		
+		JSONArray opsArray = new JSONArray();
+		for (BentoOperation op : mPendingOps) {
+			opsArray.put(op.toJson());
+		}
+		deltaObj.put(BentoJson.DELTA_OPS, opsArray);
+		
+		return deltaObj;
+	}
+	
 	private JSONObject getBentoObj() {
 		
 		JSONObject bentoObj = new JSONObject();
 		try {
-			bentoObj.put(BENTO_UUID, mBento.bento.uuid);
-			bentoObj.put(BENTO_NAME, mBento.bento.name);
-			bentoObj.put(BENTO_CRE_CONTACT_ID, mBento.bento.creContactId);
+			bentoObj.put(BentoJson.BENTO_UUID, mBento.bento.uuid);
+			bentoObj.put(BentoJson.BENTO_NAME, mBento.bento.name);
+			bentoObj.put(BentoJson.BENTO_CRE_CONTACT_ID, mBento.bento.creContactId);
 
 		} catch (JSONException e) {
 			Log.e(TAG, "Failed to put JSON", e);
@@ -692,19 +1632,7 @@ public class BentoManager {
 
 			for (int i = 0; i < mBento.bento.todoList.size(); i++) {
 				TodoListItem item = mBento.bento.todoList.get(i);
-				
-				JSONObject todoObj = new JSONObject();
-				todoObj.put(TODO_UUID, item.uuid);
-				todoObj.put(TODO_TITLE, item.title);
-				todoObj.put(TODO_DESCRIPTION, item.description);
-				todoObj.put(TODO_HAS_IMG, item.hasImage);
-				todoObj.put(TODO_DONE, item.bDone);
-				todoObj.put(TODO_CRE_DATE, item.creDateMillis);
-				todoObj.put(TODO_MOD_DATE, item.modDateMillis);
-				todoObj.put(TODO_CRE_CONTACT_ID, item.creContactId);
-				todoObj.put(TODO_MOD_CONTACT_ID, item.modContactId);
-				
-				todoListArray.put(todoObj);
+				todoListArray.put(BentoJson.getTodoObj(item));
 			}
 						
 		} catch (JSONException e) {
@@ -713,15 +1641,15 @@ public class BentoManager {
 		
 		return todoListArray;
 	}
-
+	
 	private JSONObject getStateObj() {
 		JSONObject stateObj = new JSONObject();
 		try {
-			stateObj.put(VERSION_CODE, mVersionCode);
+			stateObj.put(BentoJson.VERSION_CODE, mVersionCode);
 			JSONObject bentoObj = getBentoObj();
-			stateObj.put(BENTO, bentoObj);
+			stateObj.put(BentoJson.BENTO, bentoObj);
 			JSONArray todoListArray = getTodoListArray();
-			stateObj.put(TODO_LIST, todoListArray);
+			stateObj.put(BentoJson.TODO_LIST, todoListArray);
 		} catch (JSONException e) {
 			Log.e(TAG, "Failed to put JSON", e);
 		}
@@ -729,6 +1657,7 @@ public class BentoManager {
 	}
 	
 	private boolean isValidBento(String uuid) {
-		return (mBento != null && mBento.bento.uuid != null && uuid != null && mBento.bento.uuid.equals(uuid));
+		BentoListItem bento = mBento;
+		return (bento != null && bento.bento.uuid != null && uuid != null && bento.bento.uuid.equals(uuid));
 	}
 }
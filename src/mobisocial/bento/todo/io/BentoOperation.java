@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.ArrayList;
+
+import mobisocial.bento.todo.ui.TodoListItem;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A single change to a Bento, keyed by todo uuid.
+ * Operations are posted in appstate objs instead of the whole state and
+ * applied by every member to its current Bento. Applying the same operation
+ * twice leaves the Bento unchanged, so our own posts coming back through
+ * the state observer are harmless. Items are replaced rather than changed,
+ * so a copy of a published Bento can be handed to apply().
+ */
+public class BentoOperation {
+	public static final String TYPE_ADD = "add";
+	public static final String TYPE_UPDATE = "update";
+	public static final String TYPE_MOVE = "move";
+	public static final String TYPE_REMOVE = "remove";
+
+	public String type;
+	public String uuid;
+	// add / update, move : rank key and its date only
+	public TodoListItem todo;
+	// add / move from older versions without rank keys :
+	// uuid of the todo placed right before, null means top
+	public String afterUuid;
+
+	public static BentoOperation add(TodoListItem item, String afterUuid) {
+		BentoOperation op = new BentoOperation();
+		op.type = TYPE_ADD;
+		op.uuid = item.uuid;
+		op.todo = item;
+		op.afterUuid = afterUuid;
+		return op;
+	}
+
+	public static BentoOperation update(TodoListItem item) {
+		BentoOperation op = new BentoOperation();
+		op.type = TYPE_UPDATE;
+		op.uuid = item.uuid;
+		op.todo = item;
+		return op;
+	}
+
+	// item carries the new rank key
+	public static BentoOperation move(TodoListItem item) {
+		BentoOperation op = new BentoOperation();
+		op.type = TYPE_MOVE;
+		op.uuid = item.uuid;
+		op.todo = item;
+		return op;
+	}
+
+	public static BentoOperation remove(String uuid) {
+		BentoOperation op = new BentoOperation();
+		op.type = TYPE_REMOVE;
+		op.uuid = uuid;
+		return op;
+	}
+
+	// ----------------------------------------------------------
+	// JSON
+	// ----------------------------------------------------------
+	public JSONObject toJson() throws JSONException {
+		JSONObject opObj = new JSONObject();
+		opObj.put(BentoJson.OP_TYPE, type);
+		opObj.put(BentoJson.OP_UUID, uuid);
+		if (afterUuid != null) {
+			opObj.put(BentoJson.OP_AFTER, afterUuid);
+		}
+		if (TYPE_ADD.equals(type)) {
+			opObj.put(BentoJson.OP_TODO, BentoJson.getTodoObj(todo));
+		} else if (TYPE_UPDATE.equals(type)) {
+			// only the fields a member can change
+			JSONObject fieldsObj = new JSONObject();
+			fieldsObj.put(BentoJson.TODO_TITLE, todo.title);
+			fieldsObj.put(BentoJson.TODO_DESCRIPTION, todo.description);
+			fieldsObj.put(BentoJson.TODO_DONE, todo.bDone);
+			fieldsObj.put(BentoJson.TODO_MOD_DATE, todo.modDateMillis);
+			fieldsObj.put(BentoJson.TODO_MOD_CONTACT_ID, todo.modContactId);
+			if (todo.imageHash != null) {
+				fieldsObj.put(BentoJson.TODO_IMAGE_HASH, todo.imageHash);
+			}
+			opObj.put(BentoJson.OP_TODO, fieldsObj);
+		} else if (TYPE_MOVE.equals(type) && todo != null) {
+			JSONObject fieldsObj = new JSONObject();
+			fieldsObj.put(BentoJson.TODO_RANK, todo.rank);
+			fieldsObj.put(BentoJson.TODO_RANK_DATE, todo.rankDateMillis);
+			opObj.put(BentoJson.OP_TODO, fieldsObj);
+		}
+		return opObj;
+	}
+
+	public static BentoOperation fromJson(JSONObject opObj) {
+		BentoOperation op = new BentoOperation();
+		op.type = opObj.optString(BentoJson.OP_TYPE, null);
+		op.uuid = opObj.optString(BentoJson.OP_UUID, null);
+		op.afterUuid = opObj.optString(BentoJson.OP_AFTER, null);
+		if (op.type == null || op.uuid == null) {
+			return null;
+		}
+
+		JSONObject todoObj = opObj.optJSONObject(BentoJson.OP_TODO);
+		if (TYPE_ADD.equals(op.type)) {
+			if (todoObj == null) {
+				return null;
+			}
+			op.todo = new TodoListItem();
+			BentoJson.fetchTodoObj(todoObj, op.todo);
+			op.todo.uuid = op.uuid;
+		} else if (TYPE_UPDATE.equals(op.type)) {
+			if (todoObj == null) {
+				return null;
+			}
+			op.todo = new TodoListItem();
+			op.todo.uuid = op.uuid;
+			op.todo.title = todoObj.optString(BentoJson.TODO_TITLE, null);
+			op.todo.description = todoObj.optString(BentoJson.TODO_DESCRIPTION, null);
+			op.todo.bDone = todoObj.has(BentoJson.TODO_DONE)
+					? todoObj.optBoolean(BentoJson.TODO_DONE) : null;
+			op.todo.modDateMillis = todoObj.optLong(BentoJson.TODO_MOD_DATE);
+			op.todo.modContactId = todoObj.optString(BentoJson.TODO_MOD_CONTACT_ID, null);
+			op.todo.imageHash = todoObj.optString(BentoJson.TODO_IMAGE_HASH, null);
+		} else if (TYPE_MOVE.equals(op.type) && todoObj != null) {
+			op.todo = new TodoListItem();
+			op.todo.uuid = op.uuid;
+			op.todo.rank = todoObj.optString(BentoJson.TODO_RANK, null);
+			op.todo.rankDateMillis = todoObj.optLong(BentoJson.TODO_RANK_DATE);
+		}
+		return op;
+	}
+
+	// ----------------------------------------------------------
+	// Apply
+	// ----------------------------------------------------------
+	public void apply(Bento bento) {
+		ArrayList<TodoListItem> todoList = bento.todoList;
+		int index = bento.indexOf(uuid);
+
+		if (TYPE_ADD.equals(type)) {
+			if (index < 0) {
+				TodoListItem item = todo;
+				if (item.rank == null) {
+					// older versions send the predecessor instead of a rank
+					item = new TodoListItem(todo);
+					item.rank = bento.rankAt(insertPosition(bento, afterUuid));
+				}
+				todoList.add(bento.orderPosition(item), item);
+				bento.invalidatePositions();
+			}
+		} else if (TYPE_UPDATE.equals(type)) {
+			if (index >= 0) {
+				// todo items may be shared with published snapshots
+				TodoListItem item = new TodoListItem(todoList.get(index));
+				todoList.set(index, item);
+				if (todo.title != null) item.title = todo.title;
+				if (todo.description != null) item.description = todo.description;
+				if (todo.bDone != null) item.bDone = todo.bDone;
+				if (todo.modDateMillis != 0) item.modDateMillis = todo.modDateMillis;
+				if (todo.modContactId != null) item.modContactId = todo.modContactId;
+				if (todo.imageHash != null) {
+					item.imageHash = todo.imageHash;
+					item.hasImage = true;
+				}
+			}
+		} else if (TYPE_MOVE.equals(type)) {
+			if (index >= 0 && isNewerRank(todoList.get(index))) {
+				TodoListItem item = new TodoListItem(todoList.remove(index));
+				bento.invalidatePositions();
+				if (todo != null && todo.rank != null) {
+					item.rank = todo.rank;
+					item.rankDateMillis = todo.rankDateMillis;
+				} else {
+					item.rank = bento.rankAt(insertPosition(bento, afterUuid));
+				}
+				todoList.add(bento.orderPosition(item), item);
+				bento.invalidatePositions();
+			}
+		} else if (TYPE_REMOVE.equals(type)) {
+			if (index >= 0) {
+				todoList.remove(index);
+				bento.invalidatePositions();
+			}
+		}
+	}
+
+	// Concurrent moves of one todo : the later one wins, equal dates are
+	// decided by the key, so every member keeps the same one.
+	private boolean isNewerRank(TodoListItem item) {
+		if (todo == null || todo.rank == null) {
+			return !uuid.equals(afterUuid);
+		}
+		if (todo.rankDateMillis != item.rankDateMillis) {
+			return (todo.rankDateMillis > item.rankDateMillis);
+		}
+		return (item.rank == null || todo.rank.compareTo(item.rank) > 0);
+	}
+
+	private static int insertPosition(Bento bento, String afterUuid) {
+		if (afterUuid == null) {
+			return 0;
+		}
+		// unknown predecessor (e.g. removed meanwhile) falls back to top
+		return bento.indexOf(afterUuid) + 1;
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.ArrayList;
+
+import mobisocial.bento.todo.ui.TodoListItem;
+
+/**
+ * Decodes appstate json straight into Bento / TodoListItem / BentoOperation
+ * in one pass, without building an org.json tree first.
+ */
+public class BentoStateReader {
+	public static final int ROOT_NONE = 0;
+	public static final int ROOT_STATE = 1;
+	public static final int ROOT_DELTA = 2;
+
+	// Which payload the obj carries, checking top-level keys only
+	public static int peekRoot(String json) {
+		try {
+			JsonPullReader reader = new JsonPullReader(json);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if (BentoJson.STATE.equals(name)) {
+					return ROOT_STATE;
+				} else if (BentoJson.DELTA.equals(name)) {
+					return ROOT_DELTA;
+				}
+				reader.skipValue();
+			}
+		} catch (RuntimeException e) {
+			// malformed
+		}
+		return ROOT_NONE;
+	}
+
+	// Fills bento from root > state. In header only mode, todo list items
+	// are counted into numberOfTodo but not materialized.
+	public static boolean readState(String json, Bento bento, boolean bHeaderOnly) {
+		boolean ret = false;
+		try {
+			JsonPullReader reader = new JsonPullReader(json);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (BentoJson.STATE.equals(reader.nextName())
+						&& reader.peek() == JsonPullReader.BEGIN_OBJECT) {
+					ret = readStateObj(reader, bento, bHeaderOnly);
+				} else {
+					reader.skipValue();
+				}
+			}
+		} catch (RuntimeException e) {
+			ret = false;
+		}
+		return ret;
+	}
+
+	// Appends root > delta > ops to ops, returns the bento uuid of the delta
+	public static String readDelta(String json, ArrayList<BentoOperation> ops) {
+		String bentoUuid = null;
+		try {
+			JsonPullReader reader = new JsonPullReader(json);
+			reader.beginObject();
+			while (reader.hasNext()) {
+				if (BentoJson.DELTA.equals(reader.nextName())
+						&& reader.peek() == JsonPullReader.BEGIN_OBJECT) {
+					reader.beginObject();
+					while (reader.hasNext()) {
+						String name = reader.nextName();
+						if (BentoJson.DELTA_BENTO_UUID.equals(name)) {
+							bentoUuid = reader.nextString();
+						} else if (BentoJson.DELTA_OPS.equals(name)
+								&& reader.peek() == JsonPullReader.BEGIN_ARRAY) {
+							reader.beginArray();
+							while (reader.hasNext()) {
+								BentoOperation op = readOperation(reader);
+								if (op != null) {
+									ops.add(op);
+								}
+							}
+							reader.endArray();
+						} else {
+							reader.skipValue();
+						}
+					}
+					reader.endObject();
+				} else {
+					reader.skipValue();
+				}
+			}
+		} catch (RuntimeException e) {
+			return null;
+		}
+		return bentoUuid;
+	}
+
+	// ----------------------------------------------------------
+	// Private
+	// ----------------------------------------------------------
+	private static boolean readStateObj(JsonPullReader reader, Bento bento, boolean bHeaderOnly) {
+		boolean bHasBento = false;
+		int count = 0;
+
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (BentoJson.BENTO.equals(name) && reader.peek() == JsonPullReader.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					String key = reader.nextName();
+					if (BentoJson.BENTO_UUID.equals(key)) {
+						bento.uuid = optString(reader);
+					} else if (BentoJson.BENTO_NAME.equals(key)) {
+						bento.name = optString(reader);
+					} else if (BentoJson.BENTO_CRE_CONTACT_ID.equals(key)) {
+						bento.creContactId = optString(reader);
+					} else {
+						reader.skipValue();
+					}
+				}
+				reader.endObject();
+				bHasBento = true;
+			} else if (BentoJson.TODO_LIST.equals(name) && reader.peek() == JsonPullReader.BEGIN_ARRAY) {
+				reader.beginArray();
+				while (reader.hasNext()) {
+					if (bHeaderOnly || reader.peek() != JsonPullReader.BEGIN_OBJECT) {
+						reader.skipValue();
+					} else {
+						TodoListItem item = new TodoListItem();
+						readTodoObj(reader, item);
+						setTodoDefaults(item);
+						bento.todoList.add(item);
+					}
+					count++;
+				}
+				reader.endArray();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (!bHeaderOnly) {
+			bento.normalizeRanks();
+		}
+		bento.numberOfTodo = count;
+		return bHasBento;
+	}
+
+	private static BentoOperation readOperation(JsonPullReader reader) {
+		if (reader.peek() != JsonPullReader.BEGIN_OBJECT) {
+			reader.skipValue();
+			return null;
+		}
+
+		BentoOperation op = new BentoOperation();
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String name = reader.nextName();
+			if (BentoJson.OP_TYPE.equals(name)) {
+				op.type = reader.nextString();
+			} else if (BentoJson.OP_UUID.equals(name)) {
+				op.uuid = reader.nextString();
+			} else if (BentoJson.OP_AFTER.equals(name)) {
+				op.afterUuid = reader.nextString();
+			} else if (BentoJson.OP_TODO.equals(name) && reader.peek() == JsonPullReader.BEGIN_OBJECT) {
+				op.todo = new TodoListItem();
+				readTodoObj(reader, op.todo);
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+
+		if (op.type == null || op.uuid == null) {
+			return null;
+		}
+		if (BentoOperation.TYPE_ADD.equals(op.type) || BentoOperation.TYPE_UPDATE.equals(op.type)) {
+			if (op.todo == null) {
+				return null;
+			}
+			op.todo.uuid = op.uuid;
+			if (BentoOperation.TYPE_ADD.equals(op.type)) {
+				setTodoDefaults(op.todo);
+			}
+		}
+		return op;
+	}
+
+	// Fields missing in json stay null / 0
+	private static void readTodoObj(JsonPullReader reader, TodoListItem item) {
+		reader.beginObject();
+		while (reader.hasNext()) {
+			String key = reader.nextName();
+			if (BentoJson.TODO_UUID.equals(key)) {
+				item.uuid = optString(reader);
+			} else if (BentoJson.TODO_TITLE.equals(key)) {
+				item.title = optString(reader);
+			} else if (BentoJson.TODO_DESCRIPTION.equals(key)) {
+				item.description = optString(reader);
+			} else if (BentoJson.TODO_HAS_IMG.equals(key)) {
+				item.hasImage = reader.nextBoolean();
+			} else if (BentoJson.TODO_IMAGE_HASH.equals(key)) {
+				item.imageHash = reader.nextString();
+			} else if (BentoJson.TODO_DONE.equals(key)) {
+				item.bDone = reader.nextBoolean();
+			} else if (BentoJson.TODO_CRE_DATE.equals(key)) {
+				item.creDateMillis = reader.nextLong();
+			} else if (BentoJson.TODO_MOD_DATE.equals(key)) {
+				item.modDateMillis = reader.nextLong();
+			} else if (BentoJson.TODO_CRE_CONTACT_ID.equals(key)) {
+				item.creContactId = optString(reader);
+			} else if (BentoJson.TODO_MOD_CONTACT_ID.equals(key)) {
+				item.modContactId = optString(reader);
+			} else if (BentoJson.TODO_RANK.equals(key)) {
+				item.rank = reader.nextString();
+			} else if (BentoJson.TODO_RANK_DATE.equals(key)) {
+				item.rankDateMillis = reader.nextLong();
+			} else {
+				reader.skipValue();
+			}
+		}
+		reader.endObject();
+	}
+
+	// Same defaults as JSONObject.optXXX() in BentoJson.fetchTodoObj
+	private static void setTodoDefaults(TodoListItem item) {
+		if (item.uuid == null) item.uuid = "";
+		if (item.title == null) item.title = "";
+		if (item.description == null) item.description = "";
+		if (item.bDone == null) item.bDone = false;
+		if (item.creContactId == null) item.creContactId = "";
+		if (item.modContactId == null) item.modContactId = "";
+	}
+
+	private static String optString(JsonPullReader reader) {
+		String value = reader.nextString();
+		return (value == null) ? "" : value;
+	}
+}
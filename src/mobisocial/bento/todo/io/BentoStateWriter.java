@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.List;
+
+import mobisocial.bento.todo.ui.TodoListItem;
+
+/**
+ * Encodes a Bento as {"state":{...}} UTF-8 json in a single pass into a
+ * buffer which is kept and reused across pushes.
+ * The layout is the one BentoStateReader and fetchTodoListObj expect.
+ */
+public class BentoStateWriter {
+	private static final int INITIAL_CAPACITY = 16 * 1024;
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+	private int mCount = 0;
+	private boolean mbNeedComma = false;
+
+	public BentoStateWriter write(Bento bento, int versionCode) {
+		mCount = 0;
+		mbNeedComma = false;
+
+		beginObject();
+		name(BentoJson.STATE);
+		beginObject();
+		name(BentoJson.VERSION_CODE);
+		value(versionCode);
+
+		name(BentoJson.BENTO);
+		beginObject();
+		name(BentoJson.BENTO_UUID, bento.uuid);
+		name(BentoJson.BENTO_NAME, bento.name);
+		name(BentoJson.BENTO_CRE_CONTACT_ID, bento.creContactId);
+		endObject();
+
+		name(BentoJson.TODO_LIST);
+		beginArray();
+		List<TodoListItem> todoList = bento.todoList;
+		for (int i = 0; i < todoList.size(); i++) {
+			TodoListItem item = todoList.get(i);
+			beginObject();
+			name(BentoJson.TODO_UUID, item.uuid);
+			name(BentoJson.TODO_TITLE, item.title);
+			name(BentoJson.TODO_DESCRIPTION, item.description);
+			name(BentoJson.TODO_HAS_IMG);
+			value(item.hasImage);
+			name(BentoJson.TODO_IMAGE_HASH, item.imageHash);
+			if (item.bDone != null) {
+				name(BentoJson.TODO_DONE);
+				value(item.bDone.booleanValue());
+			}
+			name(BentoJson.TODO_CRE_DATE);
+			value(item.creDateMillis);
+			name(BentoJson.TODO_MOD_DATE);
+			value(item.modDateMillis);
+			name(BentoJson.TODO_CRE_CONTACT_ID, item.creContactId);
+			name(BentoJson.TODO_MOD_CONTACT_ID, item.modContactId);
+			name(BentoJson.TODO_RANK, item.rank);
+			if (item.rankDateMillis != 0) {
+				name(BentoJson.TODO_RANK_DATE);
+				value(item.rankDateMillis);
+			}
+			endObject();
+		}
+		endArray();
+
+		endObject();
+		endObject();
+		return this;
+	}
+
+	public int size() {
+		return mCount;
+	}
+
+	public byte[] toByteArray() {
+		byte[] out = new byte[mCount];
+		System.arraycopy(mBuffer, 0, out, 0, mCount);
+		return out;
+	}
+
+	// ----------------------------------------------------------
+	// Private
+	// ----------------------------------------------------------
+	private void beginObject() {
+		separator();
+		append('{');
+		mbNeedComma = false;
+	}
+
+	private void endObject() {
+		append('}');
+		mbNeedComma = true;
+	}
+
+	private void beginArray() {
+		separator();
+		append('[');
+		mbNeedComma = false;
+	}
+
+	private void endArray() {
+		append(']');
+		mbNeedComma = true;
+	}
+
+	private void name(String name) {
+		separator();
+		string(name);
+		append(':');
+		mbNeedComma = false;
+	}
+
+	// same as JSONObject.put(): null values are left out
+	private void name(String name, String value) {
+		if (value != null) {
+			name(name);
+			separator();
+			string(value);
+			mbNeedComma = true;
+		}
+	}
+
+	private void value(long value) {
+		separator();
+		if (value == Long.MIN_VALUE) {
+			ascii(Long.toString(value));
+		} else {
+			if (value < 0) {
+				append('-');
+				value = -value;
+			}
+			long divisor = 1;
+			while (value / divisor >= 10) {
+				divisor *= 10;
+			}
+			for (; divisor > 0; divisor /= 10) {
+				append((char) ('0' + (value / divisor) % 10));
+			}
+		}
+		mbNeedComma = true;
+	}
+
+	private void value(boolean value) {
+		separator();
+		ascii(value ? "true" : "false");
+		mbNeedComma = true;
+	}
+
+	private void separator() {
+		if (mbNeedComma) {
+			append(',');
+			mbNeedComma = false;
+		}
+	}
+
+	private void string(String value) {
+		append('"');
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char ch = value.charAt(i);
+			switch (ch) {
+			case '"':
+			case '\\':
+			case '/':
+				append('\\');
+				append(ch);
+				break;
+			case '\t':
+				append('\\');
+				append('t');
+				break;
+			case '\b':
+				append('\\');
+				append('b');
+				break;
+			case '\n':
+				append('\\');
+				append('n');
+				break;
+			case '\r':
+				append('\\');
+				append('r');
+				break;
+			case '\f':
+				append('\\');
+				append('f');
+				break;
+			default:
+				if (ch < 0x20) {
+					ascii("\\u00");
+					ensure(2);
+					mBuffer[mCount++] = HEX[(ch >> 4) & 0xf];
+					mBuffer[mCount++] = HEX[ch & 0xf];
+				} else if (ch < 0x80) {
+					append(ch);
+				} else if (ch < 0x800) {
+					ensure(2);
+					mBuffer[mCount++] = (byte) (0xc0 | (ch >> 6));
+					mBuffer[mCount++] = (byte) (0x80 | (ch & 0x3f));
+				} else if (Character.isHighSurrogate(ch) && i + 1 < length
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+					ensure(4);
+					mBuffer[mCount++] = (byte) (0xf0 | (codePoint >> 18));
+					mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					mBuffer[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					mBuffer[mCount++] = (byte) (0x80 | (codePoint & 0x3f));
+				} else {
+					ensure(3);
+					mBuffer[mCount++] = (byte) (0xe0 | (ch >> 12));
+					mBuffer[mCount++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+					mBuffer[mCount++] = (byte) (0x80 | (ch & 0x3f));
+				}
+				break;
+			}
+		}
+		append('"');
+	}
+
+	private void ascii(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			append(value.charAt(i));
+		}
+	}
+
+	private void append(char ch) {
+		ensure(1);
+		mBuffer[mCount++] = (byte) ch;
+	}
+
+	private void ensure(int bytes) {
+		if (mCount + bytes > mBuffer.length) {
+			byte[] newBuffer = new byte[Math.max(mBuffer.length * 2, mCount + bytes)];
+			System.arraycopy(mBuffer, 0, newBuffer, 0, mCount);
+			mBuffer = newBuffer;
+		}
+	}
+}
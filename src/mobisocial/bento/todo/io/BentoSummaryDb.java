@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+/**
+ * App-private index of bento headers (name, todo count) keyed by the
+ * todobento obj, so the bento list only re-reads the bentos whose obj
+ * was modified since the last scan.
+ * Also maps todo uuids to the obj holding their image.
+ */
+class BentoSummaryDb extends SQLiteOpenHelper {
+	private static final String DATABASE_NAME = "bento_summary.db";
+	// bump when the way headers are derived changes, drops the index
+	private static final int DATABASE_VERSION = 4;
+
+	private static final String TABLE_SUMMARY = "bento_summary";
+	private static final String COL_OBJ_ID = "obj_id";
+	private static final String COL_FEED_ID = "feed_id";
+	private static final String COL_LAST_MODIFIED = "last_modified";
+	private static final String COL_UUID = "uuid";
+	private static final String COL_NAME = "name";
+	private static final String COL_CRE_CONTACT_ID = "cre_contact_id";
+	private static final String COL_TODO_COUNT = "todo_count";
+
+	private static final String TABLE_TODO_IMAGE = "todo_image";
+	private static final String COL_TODO_UUID = "todo_uuid";
+	private static final String COL_IMAGE_OBJ_ID = "image_obj_id";
+
+	// content hash -> image obj, one row per bento holding it
+	private static final String TABLE_IMAGE = "image";
+	private static final String COL_HASH = "hash";
+	private static final String COL_PARENT_ID = "parent_id";
+
+	// bento -> newest image obj scanned for the index
+	private static final String TABLE_IMAGE_BACKFILL = "image_backfill";
+	private static final String COL_LAST_OBJ_ID = "last_obj_id";
+
+	public static class Summary {
+		public long objId;
+		public long feedId;
+		public long lastModified;
+		// header and numberOfTodo only
+		public Bento bento;
+	}
+
+	public BentoSummaryDb(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_SUMMARY + " ("
+				+ COL_OBJ_ID + " INTEGER PRIMARY KEY, "
+				+ COL_FEED_ID + " INTEGER, "
+				+ COL_LAST_MODIFIED + " INTEGER, "
+				+ COL_UUID + " TEXT, "
+				+ COL_NAME + " TEXT, "
+				+ COL_CRE_CONTACT_ID + " TEXT, "
+				+ COL_TODO_COUNT + " INTEGER)");
+		db.execSQL("CREATE TABLE " + TABLE_TODO_IMAGE + " ("
+				+ COL_TODO_UUID + " TEXT PRIMARY KEY, "
+				+ COL_IMAGE_OBJ_ID + " INTEGER)");
+		db.execSQL("CREATE TABLE " + TABLE_IMAGE + " ("
+				+ COL_HASH + " TEXT, "
+				+ COL_PARENT_ID + " INTEGER, "
+				+ COL_IMAGE_OBJ_ID + " INTEGER, "
+				+ "PRIMARY KEY (" + COL_HASH + ", " + COL_PARENT_ID + "))");
+		db.execSQL("CREATE TABLE " + TABLE_IMAGE_BACKFILL + " ("
+				+ COL_PARENT_ID + " INTEGER PRIMARY KEY, "
+				+ COL_LAST_OBJ_ID + " INTEGER)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// only a cache, rebuilt by the next scan
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SUMMARY);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_TODO_IMAGE);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGE);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGE_BACKFILL);
+		onCreate(db);
+	}
+
+	// obj id -> summary
+	public HashMap<Long, Summary> getSummaries() {
+		HashMap<Long, Summary> summaries = new HashMap<Long, Summary>();
+		String[] columns = new String[] { COL_OBJ_ID, COL_FEED_ID, COL_LAST_MODIFIED,
+				COL_UUID, COL_NAME, COL_CRE_CONTACT_ID, COL_TODO_COUNT };
+		Cursor c = getReadableDatabase().query(TABLE_SUMMARY, columns, null, null, null, null, null);
+		try {
+			while (c.moveToNext()) {
+				Summary summary = new Summary();
+				summary.objId = c.getLong(0);
+				summary.feedId = c.getLong(1);
+				summary.lastModified = c.getLong(2);
+				summary.bento = new Bento();
+				summary.bento.uuid = c.getString(3);
+				summary.bento.name = c.getString(4);
+				summary.bento.creContactId = c.getString(5);
+				summary.bento.numberOfTodo = c.getInt(6);
+				summaries.put(summary.objId, summary);
+			}
+		} finally {
+			c.close();
+		}
+		return summaries;
+	}
+
+	// stores re-read summaries and drops those of objs gone, in one transaction
+	public void update(List<Summary> summaries, Collection<Long> removedObjIds) {
+		if (summaries.isEmpty() && removedObjIds.isEmpty()) {
+			return;
+		}
+
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			ContentValues values = new ContentValues();
+			for (Summary summary : summaries) {
+				values.clear();
+				values.put(COL_OBJ_ID, summary.objId);
+				values.put(COL_FEED_ID, summary.feedId);
+				values.put(COL_LAST_MODIFIED, summary.lastModified);
+				values.put(COL_UUID, summary.bento.uuid);
+				values.put(COL_NAME, summary.bento.name);
+				values.put(COL_CRE_CONTACT_ID, summary.bento.creContactId);
+				values.put(COL_TODO_COUNT, summary.bento.numberOfTodo);
+				db.replace(TABLE_SUMMARY, null, values);
+			}
+			for (Long objId : removedObjIds) {
+				db.delete(TABLE_SUMMARY, COL_OBJ_ID + "=?", new String[] { objId.toString() });
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	// id of the obj holding the todo's image, -1 when not indexed
+	public long getTodoImageObjId(String todoUuid) {
+		long objId = -1;
+		Cursor c = getReadableDatabase().query(TABLE_TODO_IMAGE, new String[] { COL_IMAGE_OBJ_ID },
+				COL_TODO_UUID + "=?", new String[] { todoUuid }, null, null, null);
+		try {
+			if (c.moveToFirst()) {
+				objId = c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		return objId;
+	}
+
+	// The newest image obj wins, whatever order objs are seen in.
+	// Returns true when the todo got a newer image.
+	public boolean putTodoImage(String todoUuid, long objId) {
+		boolean bChanged = false;
+		SQLiteDatabase db = getWritableDatabase();
+		db.beginTransaction();
+		try {
+			Cursor c = db.query(TABLE_TODO_IMAGE, new String[] { COL_IMAGE_OBJ_ID },
+					COL_TODO_UUID + "=?", new String[] { todoUuid }, null, null, null);
+			try {
+				bChanged = !c.moveToFirst() || c.getLong(0) < objId;
+			} finally {
+				c.close();
+			}
+			if (bChanged) {
+				ContentValues values = new ContentValues();
+				values.put(COL_TODO_UUID, todoUuid);
+				values.put(COL_IMAGE_OBJ_ID, objId);
+				db.replace(TABLE_TODO_IMAGE, null, values);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		return bChanged;
+	}
+
+	// the indexed obj is gone
+	public void removeTodoImage(String todoUuid) {
+		getWritableDatabase().delete(TABLE_TODO_IMAGE, COL_TODO_UUID + "=?", new String[] { todoUuid });
+	}
+
+	// id of an obj holding the image, in any bento, -1 when not indexed
+	public long getImageObjId(String hash) {
+		long objId = -1;
+		Cursor c = getReadableDatabase().query(TABLE_IMAGE, new String[] { COL_IMAGE_OBJ_ID },
+				COL_HASH + "=?", new String[] { hash }, null, null, null, "1");
+		try {
+			if (c.moveToFirst()) {
+				objId = c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		return objId;
+	}
+
+	// whether the bento has an obj with the image already
+	public boolean hasImage(String hash, long parentId) {
+		Cursor c = getReadableDatabase().query(TABLE_IMAGE, new String[] { COL_IMAGE_OBJ_ID },
+				COL_HASH + "=? and " + COL_PARENT_ID + "=?",
+				new String[] { hash, String.valueOf(parentId) }, null, null, null);
+		try {
+			return c.moveToFirst();
+		} finally {
+			c.close();
+		}
+	}
+
+	// Same hash, same bytes : the first obj seen is kept.
+	public void putImage(String hash, long parentId, long objId) {
+		getWritableDatabase().execSQL("INSERT OR IGNORE INTO " + TABLE_IMAGE
+				+ " (" + COL_HASH + ", " + COL_PARENT_ID + ", " + COL_IMAGE_OBJ_ID + ") VALUES (?, ?, ?)",
+				new Object[] { hash, parentId, objId });
+	}
+
+	// the indexed obj is gone
+	public void removeImage(String hash, long objId) {
+		getWritableDatabase().delete(TABLE_IMAGE, COL_HASH + "=? and " + COL_IMAGE_OBJ_ID + "=?",
+				new String[] { hash, String.valueOf(objId) });
+	}
+
+	// image objs of the bento up to this id are indexed, -1 when none
+	public long getImageBackfillObjId(long parentId) {
+		long objId = -1;
+		Cursor c = getReadableDatabase().query(TABLE_IMAGE_BACKFILL, new String[] { COL_LAST_OBJ_ID },
+				COL_PARENT_ID + "=?", new String[] { String.valueOf(parentId) }, null, null, null);
+		try {
+			if (c.moveToFirst()) {
+				objId = c.getLong(0);
+			}
+		} finally {
+			c.close();
+		}
+		return objId;
+	}
+
+	public void putImageBackfillObjId(long parentId, long objId) {
+		ContentValues values = new ContentValues();
+		values.put(COL_PARENT_ID, parentId);
+		values.put(COL_LAST_OBJ_ID, objId);
+		getWritableDatabase().replace(TABLE_IMAGE_BACKFILL, null, values);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+/**
+ * Minimal pull parser over a JSON string.
+ * android.util.JsonReader needs API 11, so this covers what the state
+ * decoder needs on older platforms. Skipped values are scanned, not built.
+ */
+class JsonPullReader {
+	public static final int BEGIN_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int BEGIN_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int STRING = 5;
+	public static final int NUMBER = 6;
+	public static final int BOOLEAN = 7;
+	public static final int NULL = 8;
+	public static final int END_DOCUMENT = 9;
+
+	private final String mJson;
+	private final int mLength;
+	private int mPos = 0;
+	private final StringBuilder mBuilder = new StringBuilder();
+
+	public JsonPullReader(String json) {
+		mJson = json;
+		mLength = json.length();
+	}
+
+	public int peek() {
+		skipSeparators();
+		if (mPos >= mLength) {
+			return END_DOCUMENT;
+		}
+		char ch = mJson.charAt(mPos);
+		switch (ch) {
+		case '{':
+			return BEGIN_OBJECT;
+		case '}':
+			return END_OBJECT;
+		case '[':
+			return BEGIN_ARRAY;
+		case ']':
+			return END_ARRAY;
+		case '"':
+			return STRING;
+		case 't':
+		case 'f':
+			return BOOLEAN;
+		case 'n':
+			return NULL;
+		default:
+			return NUMBER;
+		}
+	}
+
+	public void beginObject() {
+		expect('{');
+	}
+
+	public void endObject() {
+		expect('}');
+	}
+
+	public void beginArray() {
+		expect('[');
+	}
+
+	public void endArray() {
+		expect(']');
+	}
+
+	public boolean hasNext() {
+		int token = peek();
+		return (token != END_OBJECT && token != END_ARRAY && token != END_DOCUMENT);
+	}
+
+	public String nextName() {
+		return nextString();
+	}
+
+	public String nextString() {
+		int token = peek();
+		if (token == NULL) {
+			mPos += 4;
+			return null;
+		} else if (token != STRING) {
+			return nextLiteral();
+		}
+
+		mPos++;
+		mBuilder.setLength(0);
+		while (mPos < mLength) {
+			char ch = mJson.charAt(mPos++);
+			if (ch == '"') {
+				return mBuilder.toString();
+			} else if (ch == '\\') {
+				mBuilder.append(readEscape());
+			} else {
+				mBuilder.append(ch);
+			}
+		}
+		throw new IllegalStateException("Unterminated string at " + mPos);
+	}
+
+	public boolean nextBoolean() {
+		String value = nextString();
+		return "true".equals(value);
+	}
+
+	public long nextLong() {
+		String value = nextString();
+		if (value == null || value.length() == 0) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			try {
+				return (long) Double.parseDouble(value);
+			} catch (NumberFormatException e2) {
+				return 0;
+			}
+		}
+	}
+
+	public void skipValue() {
+		int token = peek();
+		if (token == STRING) {
+			skipString();
+		} else if (token == BEGIN_OBJECT || token == BEGIN_ARRAY) {
+			int depth = 0;
+			do {
+				char ch = mJson.charAt(mPos);
+				if (ch == '"') {
+					skipString();
+					continue;
+				} else if (ch == '{' || ch == '[') {
+					depth++;
+				} else if (ch == '}' || ch == ']') {
+					depth--;
+				}
+				mPos++;
+			} while (depth > 0 && mPos < mLength);
+		} else if (token != END_DOCUMENT) {
+			while (mPos < mLength && !isDelimiter(mJson.charAt(mPos))) {
+				mPos++;
+			}
+		}
+	}
+
+	// ----------------------------------------------------------
+	// Private
+	// ----------------------------------------------------------
+	private void skipSeparators() {
+		while (mPos < mLength) {
+			char ch = mJson.charAt(mPos);
+			if (ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r' || ch == ',' || ch == ':') {
+				mPos++;
+			} else {
+				break;
+			}
+		}
+	}
+
+	private void expect(char expected) {
+		skipSeparators();
+		if (mPos >= mLength || mJson.charAt(mPos) != expected) {
+			throw new IllegalStateException("Expected " + expected + " at " + mPos);
+		}
+		mPos++;
+	}
+
+	private String nextLiteral() {
+		int start = mPos;
+		while (mPos < mLength && !isDelimiter(mJson.charAt(mPos))) {
+			mPos++;
+		}
+		return mJson.substring(start, mPos);
+	}
+
+	private void skipString() {
+		mPos++;
+		while (mPos < mLength) {
+			char ch = mJson.charAt(mPos++);
+			if (ch == '"') {
+				return;
+			} else if (ch == '\\') {
+				mPos++;
+			}
+		}
+	}
+
+	private char readEscape() {
+		char ch = mJson.charAt(mPos++);
+		switch (ch) {
+		case 'u':
+			char unicode = (char) Integer.parseInt(mJson.substring(mPos, mPos + 4), 16);
+			mPos += 4;
+			return unicode;
+		case 't':
+			return '\t';
+		case 'b':
+			return '\b';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 'f':
+			return '\f';
+		default:
+			return ch;
+		}
+	}
+
+	private static boolean isDelimiter(char ch) {
+		return (ch == ',' || ch == '}' || ch == ']' || ch == ':'
+				|| ch == ' ' || ch == '\t' || ch == '\n' || ch == '\r');
+	}
+}
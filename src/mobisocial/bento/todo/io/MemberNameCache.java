@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Names of feed members by feed id, least recently used feeds dropped
+ * first. Safe to use from any thread.
+ * Invalidated or old entries are still returned until they are resolved
+ * again, so a list never goes back to its placeholder.
+ */
+class MemberNameCache {
+	private static class Entry {
+		public ArrayList<String> names;
+		public long resolvedMillis;
+		public boolean bStale;
+	}
+
+	private final long mMaxAgeMillis;
+	private final LinkedHashMap<Long, Entry> mEntries;
+
+	public MemberNameCache(final int maxFeeds, long maxAgeMillis) {
+		mMaxAgeMillis = maxAgeMillis;
+		mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > maxFeeds;
+			}
+		};
+	}
+
+	// null when never resolved
+	synchronized public ArrayList<String> get(long feedId) {
+		Entry entry = mEntries.get(feedId);
+		return (entry != null) ? entry.names : null;
+	}
+
+	synchronized public void put(long feedId, ArrayList<String> names) {
+		Entry entry = new Entry();
+		entry.names = names;
+		entry.resolvedMillis = SystemClock.uptimeMillis();
+		mEntries.put(feedId, entry);
+	}
+
+	synchronized public boolean needsResolve(long feedId) {
+		Entry entry = mEntries.get(feedId);
+		return (entry == null || entry.bStale
+				|| SystemClock.uptimeMillis() - entry.resolvedMillis > mMaxAgeMillis);
+	}
+
+	// membership may have changed
+	synchronized public void invalidate(long feedId) {
+		Entry entry = mEntries.get(feedId);
+		if (entry != null) {
+			entry.bStale = true;
+		}
+	}
+
+	synchronized public void clear() {
+		mEntries.clear();
+	}
+}
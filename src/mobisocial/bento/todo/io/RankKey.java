@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+/**
+ * Fractional rank keys ordering todo items.
+ * Keys are base-62 digit strings compared as plain strings. A key between
+ * any two keys always exists, so moving an item changes its key only.
+ * Generated keys never end with the lowest digit, so there is always room
+ * in front of them too.
+ */
+final class RankKey {
+	private static final String DIGITS =
+			"0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+	private static final int BASE = DIGITS.length();
+
+	private RankKey() {
+	}
+
+	// Key between low and high, null meaning no bound on that side.
+	// When low is not below high (e.g. equal keys), the key goes after low.
+	// Next to a side that is open or has run out of digits the key steps by
+	// one digit instead of halving, so adding at the top, the bottom or
+	// right after the same item over and over keeps keys short. Once low
+	// and high differ by one digit the key is below high whatever follows :
+	// it steps after low's own digits and halves past them.
+	public static String between(String low, String high) {
+		boolean bLowOpen = (low == null);
+		if (low == null) {
+			low = "";
+		}
+		if (high != null && low.compareTo(high) >= 0) {
+			high = null;
+		}
+		boolean bHighOpen = (high == null);
+		boolean bBelowHigh = false;
+
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; ; i++) {
+			int lowDigit = (i < low.length()) ? digit(low.charAt(i)) : 0;
+			int highDigit;
+			if (bHighOpen || bBelowHigh) {
+				highDigit = BASE;
+			} else if (i < high.length()) {
+				highDigit = digit(high.charAt(i));
+			} else {
+				// high ends with the lowest digit, nothing sorts between : the
+				// key equals high and ties go by uuid (keys made here never
+				// end like that)
+				return high;
+			}
+
+			if (lowDigit == highDigit) {
+				key.append(DIGITS.charAt(lowDigit));
+				continue;
+			}
+			int mid = (lowDigit + highDigit) / 2;
+			if (mid > lowDigit) {
+				boolean bLowEnded = (i >= low.length());
+				if (bHighOpen) {
+					if (!bLowOpen) {
+						mid = lowDigit + 1;
+					}
+				} else if (bBelowHigh) {
+					if (!bLowEnded) {
+						mid = lowDigit + 1;
+					}
+				} else if (bLowEnded) {
+					mid = highDigit - 1;
+				}
+				key.append(DIGITS.charAt(mid));
+				return key.toString();
+			}
+			// adjacent digits : keep low's digit, anything longer is below high
+			key.append(DIGITS.charAt(lowDigit));
+			bBelowHigh = true;
+		}
+	}
+
+	// count ascending keys spread evenly, for items that have none yet
+	public static String[] sequence(int count) {
+		int width = 1;
+		long span = BASE;
+		while (span <= count + 1) {
+			width++;
+			span *= BASE;
+		}
+
+		String[] keys = new String[count];
+		char[] chars = new char[width];
+		for (int i = 0; i < count; i++) {
+			long value = (i + 1) * span / (count + 1);
+			for (int j = width - 1; j >= 0; j--) {
+				chars[j] = DIGITS.charAt((int) (value % BASE));
+				value /= BASE;
+			}
+			int length = width;
+			while (length > 1 && chars[length - 1] == DIGITS.charAt(0)) {
+				length--;
+			}
+			keys[i] = new String(chars, 0, length);
+		}
+		return keys;
+	}
+
+	private static int digit(char ch) {
+		int digit = DIGITS.indexOf(ch);
+		return (digit >= 0) ? digit : 0;
+	}
+}
@@ -21,6 +21,7 @@ import java.util.UUID;
 import mobisocial.bento.todo.R;
 import mobisocial.bento.todo.io.Bento;
 import mobisocial.bento.todo.io.BentoManager;
+import mobisocial.bento.todo.io.BentoManager.OnMemberNamesUpdatedListener;
 import mobisocial.bento.todo.io.BentoManager.OnStateUpdatedListener;
 import mobisocial.bento.todo.util.InitialHelper;
 import mobisocial.bento.todo.util.UIUtils;
@@ -72,12 +73,14 @@ public class BentoListActivity extends FragmentActivity {
 		FragmentManager fm = getSupportFragmentManager();
 		mBentoListFragment = (BentoListFragment) fm.findFragmentById(R.id.fragment_bento_list);
 		mManager.addListener(mStateUpdatedListener);
+		mManager.addMemberNamesListener(mMemberNamesUpdatedListener);
     }
 	
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 		mManager.removeListener(mStateUpdatedListener);
+		mManager.removeMemberNamesListener(mMemberNamesUpdatedListener);
 	}
 
 	@Override
@@ -137,6 +140,14 @@ public class BentoListActivity extends FragmentActivity {
 			mBentoListFragment.refreshView();
 		}
 	};
+	
+	// BentoEventManager > OnMemberNamesUpdatedListener
+	private OnMemberNamesUpdatedListener mMemberNamesUpdatedListener = new OnMemberNamesUpdatedListener() {
+		@Override
+		public void onMemberNamesUpdated() {
+			mBentoListFragment.refreshMemberNames();
+		}
+	};
     
     private void goCreate() {
 		// Show Add dialog
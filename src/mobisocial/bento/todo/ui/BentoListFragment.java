@@ -83,6 +83,13 @@ public class BentoListFragment extends ListFragment {
 		task.execute();
     }
 	
+	// only the divider rows change, no need to load the list again
+	public void refreshMemberNames() {
+		if (mListAdapter != null) {
+			mListAdapter.notifyDataSetChanged();
+		}
+	}
+	
 	private class BentoListAsyncTask extends AsyncTask<Void, Void, Boolean> {
 		private BentoManager mManager = BentoManager.getInstance();
 		private BentoListItemAdapter mListAdapter;
@@ -118,7 +118,10 @@ public class BentoListItemAdapter extends ArrayAdapter<BentoListItem> {
 		String feedName = "";
 		ArrayList<String> members = mManager.getMemberNames(feedId);
 
-		if (members.size() > 0) {
+		if (members == null) {
+			// resolving in the background
+			feedName = mContext.getString(R.string.bento_list_members_loading);
+		} else if (members.size() > 0) {
 	        StringBuilder text = new StringBuilder(100);
 			for (String memeber : members) {
 	            text.append(memeber).append(", ");
@@ -25,8 +25,10 @@ import android.support.v4.view.Menu;
 import android.support.v4.view.MenuItem;
 
 import mobisocial.bento.todo.R;
+import mobisocial.bento.todo.io.BentoManager;
 
 public class TodoDetailActivity extends FragmentActivity {
+	private BentoManager mManager = BentoManager.getInstance();
 	private TodoDetailFragment mTodoDetailFragment = null;
 	
     @Override
@@ -43,6 +45,13 @@ public class TodoDetailActivity extends FragmentActivity {
 		actionBar.setDisplayUseLogoEnabled(true);
     }
 
+	@Override
+	protected void onPause() {
+		super.onPause();
+		// post what is still waiting in the write-behind queue
+		mManager.flushUpdates();
+	}
+
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		getMenuInflater().inflate(R.menu.menu_items_todo_detail, menu);
@@ -94,7 +94,7 @@ public class TodoDetailFragment extends Fragment {
 				mTitle.setText(mTodoItem.title);
 				mDescription.setText(mTodoItem.description);
 				if (mTodoItem.hasImage) {
-					mImageView.setImageBitmap(mManager.getTodoBitmap(mTodoItem.uuid, IMG_WIDTH, IMG_HEIGHT, 0));
+					mImageView.setImageBitmap(mManager.getTodoBitmap(mTodoItem.getImageKey(), IMG_WIDTH, IMG_HEIGHT, 0));
 					mImageView.setVisibility(View.VISIBLE);
 				} else {
 					mImageView.setVisibility(View.GONE);
@@ -119,7 +119,8 @@ public class TodoDetailFragment extends Fragment {
 				String title = mTitle.getText().toString();
 				String description = mDescription.getText().toString();
 
-				// update
+				// update a copy, the shown item belongs to the current snapshot
+				mTodoItem = new TodoListItem(mTodoItem);
 				mTodoItem.title = title;
 				mTodoItem.description = description;
 				mTodoItem.modDateMillis = System.currentTimeMillis();
@@ -20,6 +20,7 @@ import mobisocial.bento.todo.R;
 import mobisocial.bento.todo.io.BentoManager;
 import mobisocial.bento.todo.io.BentoManager.OnStateUpdatedListener;
 import mobisocial.bento.todo.ui.TodoListFragment.OnBentoSelectedListener;
+import mobisocial.bento.todo.util.ImageIngest;
 import mobisocial.bento.todo.util.InitialHelper;
 import mobisocial.bento.todo.util.InitialHelper.OnInitCompleteListener;
 import mobisocial.socialkit.musubi.Musubi;
@@ -76,10 +77,21 @@ public class TodoListActivity extends FragmentActivity implements OnBentoSelecte
 		}
     }
 	
+	@Override
+	protected void onPause() {
+		super.onPause();
+		// post what is still waiting in the write-behind queue
+		mManager.flushUpdates();
+	}
+	
 	@Override
 	protected void onDestroy() {
 		super.onDestroy();
 		mManager.removeListener(mStateUpdatedListener);
+		if (isFinishing()) {
+			// nobody is left to see those images arrive
+			ImageIngest.cancelDownloads();
+		}
 	}
 
 	@Override
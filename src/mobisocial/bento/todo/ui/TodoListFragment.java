@@ -18,35 +18,28 @@ package mobisocial.bento.todo.ui;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.UUID;
 
 import leoliang.tasks365.DraggableListView;
 import leoliang.tasks365.DraggableListView.DropListener;
 import mobisocial.bento.todo.R;
+import mobisocial.bento.todo.io.Bento;
 import mobisocial.bento.todo.io.BentoManager;
-import mobisocial.bento.todo.util.BitmapHelper;
 import mobisocial.bento.todo.util.ImageCache;
+import mobisocial.bento.todo.util.ImageIngest;
 import mobisocial.bento.todo.util.JpgFileHelper;
 import mobisocial.bento.todo.util.UIUtils;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.ProgressDialog;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.database.Cursor;
-import android.graphics.Bitmap;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.provider.MediaStore;
-import android.provider.MediaStore.MediaColumns;
 import android.support.v4.app.ListFragment;
 import android.support.v4.app.SupportActivity;
 import android.support.v4.view.MenuItem;
@@ -72,6 +65,7 @@ public class TodoListFragment extends ListFragment {
     private static final String TAG = "TodoListFragment";
 	private static final int REQUEST_IMAGE_CAPTURE = 0;
 	private static final int REQUEST_GALLERY = 1;
+	private static final String STATE_CAPTURE_PATH = "capture_path";
     
 	private BentoManager mManager = BentoManager.getInstance();
 	private TodoListItemAdapter mListAdapter = null;
@@ -79,6 +73,8 @@ public class TodoListFragment extends ListFragment {
 	private TextView mEmptyText;
 	private ProgressBar mEmptyProgressBar;
     private OnBentoSelectedListener mListener;
+    // the camera app writes here, kept across the activity being recreated
+    private File mCaptureFile = null;
 
 	@Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -125,8 +121,21 @@ public class TodoListFragment extends ListFragment {
         		android.R.layout.simple_list_item_1,
         		mListView);
         setListAdapter(mListAdapter);
+        mListView.setOnScrollListener(new TodoListPrefetcher(mListView, mListAdapter));
+        
+        if (savedInstanceState != null && savedInstanceState.getString(STATE_CAPTURE_PATH) != null) {
+        	mCaptureFile = new File(savedInstanceState.getString(STATE_CAPTURE_PATH));
+        }
     }
 
+	@Override
+	public void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		if (mCaptureFile != null) {
+			outState.putString(STATE_CAPTURE_PATH, mCaptureFile.getAbsolutePath());
+		}
+	}
+
 	@Override
 	public void onAttach(SupportActivity activity) {
 		super.onAttach(activity);
@@ -169,7 +178,7 @@ public class TodoListFragment extends ListFragment {
 		
 		// Intent
 		Intent intent = new Intent(getActivity(), TodoDetailActivity.class);
-		intent.putExtra(TodoDetailFragment.EXTRA_TODO_UUID, mManager.getTodoListItem(position).uuid);
+		intent.putExtra(TodoDetailFragment.EXTRA_TODO_UUID, mListAdapter.getItem(position).uuid);
 
         getActivity().startActivity(intent);
 	}
@@ -265,10 +274,15 @@ public class TodoListFragment extends ListFragment {
 	}
 
 	private void goCamera() {
-		File tmpFile = JpgFileHelper.getTmpFile();
+		try {
+			mCaptureFile = JpgFileHelper.createCaptureFile();
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to create capture file", e);
+			return;
+		}
 		Intent intent = new Intent();
 		intent.setAction("android.media.action.IMAGE_CAPTURE");
-		intent.putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(tmpFile));
+		intent.putExtra(MediaStore.EXTRA_OUTPUT, Uri.fromFile(mCaptureFile));
 		startActivityForResult(intent, REQUEST_IMAGE_CAPTURE);
 	}
 
@@ -290,11 +304,18 @@ public class TodoListFragment extends ListFragment {
 						// clear
 						StringBuilder msg = new StringBuilder(
 								getString(R.string.feed_msg_cleared, mManager.getLocalName()));
-						String plainMsg = UIUtils.getPlainString(mManager.getBentoListItem().bento.name, msg.toString());
+						Bento bento = mManager.getBentoListItem().bento;
+						String plainMsg = UIUtils.getPlainString(bento.name, msg.toString());
 						
-						mManager.clearTodoDone(plainMsg);
+						// images of the items going away only, images stored by
+						// hash may be shown by other todos too
+						for (TodoListItem item : bento.todoList) {
+							if (item.bDone && item.hasImage && item.imageHash == null) {
+								ImageCache.removeImages(item.uuid);
+							}
+						}
 						
-						ImageCache.clearCache();
+						mManager.clearTodoDone(plainMsg);
 						
 						// refresh list view
 						refreshView();
@@ -405,114 +426,62 @@ public class TodoListFragment extends ListFragment {
 	@Override
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
 		if (DEBUG) Log.d(TAG, "requestCode: " + requestCode + ", resultCode: " + resultCode);
+		File captureFile = null;
+		if (requestCode == REQUEST_IMAGE_CAPTURE) {
+			captureFile = mCaptureFile;
+			mCaptureFile = null;
+			if (captureFile == null) {
+				return;
+			}
+			if (resultCode != Activity.RESULT_OK) {
+				captureFile.delete();
+				return;
+			}
+		}
 		if (resultCode == Activity.RESULT_OK) {
-			try {
-				File imageFile = null;
-				
-				if (requestCode == REQUEST_IMAGE_CAPTURE) {
-					
-					imageFile = JpgFileHelper.getTmpFile();
-					
-				} else if (requestCode == REQUEST_GALLERY) {
-					Uri uri = data.getData();
-					if (uri == null || uri.toString().length() == 0) {
-						return;
-					}
-
-					if (DEBUG) Log.d(TAG, "data URI: " + uri.toString());
-					
-					ContentResolver cr = getActivity().getContentResolver();
-					String[] columns = { MediaColumns.DATA, MediaColumns.DISPLAY_NAME };
-					Cursor c = cr.query(uri, columns, null, null, null);
-					
-					if (c != null && c.moveToFirst()) {
-						if (c.getString(0) != null) {
-							//regular processing for gallery files
-							imageFile = new File(c.getString(0));
-						} else {
-							final InputStream is = getActivity().getContentResolver().openInputStream(uri);
-							imageFile = JpgFileHelper.saveTmpFile(is);
-							is.close();
-						}
-					} else if (uri.toString().startsWith("content://com.android.gallery3d.provider")) {
-						// motorola xoom doesn't work for contentresolver even if the image comes from picasa.
-						// So just adds the condition of startsWith...
-						// See in detail : http://dimitar.me/how-to-get-picasa-images-using-the-image-picker-on-android-devices-running-any-os-version/
-						uri = Uri.parse(uri.toString().replace("com.android.gallery3d","com.google.android.gallery3d"));
-						final InputStream is = getActivity().getContentResolver().openInputStream(uri);
-						imageFile = JpgFileHelper.saveTmpFile(is);
-						is.close();
-					} else {
-						// http or https
-						HttpURLConnection http = null;
-						URL url = new URL(uri.toString());
-						http = (HttpURLConnection)url.openConnection();
-						http.setRequestMethod("GET");
-						http.connect();
-						
-						final InputStream is = http.getInputStream();
-						imageFile = JpgFileHelper.saveTmpFile(is);
-						is.close();
-						if (http != null) http.disconnect();
-					}
+			Uri uri = null;
+			if (requestCode == REQUEST_GALLERY) {
+				uri = data.getData();
+				if (uri == null || uri.toString().length() == 0) {
+					return;
 				}
-				
-				if (imageFile.exists() && imageFile.length() > 0) {
-					if (DEBUG) Log.d(TAG, "imageFile exists=" + imageFile.exists()
-							+ " length=" + imageFile.length() + " path=" + imageFile.getPath());
-					
-					float degrees = 0;
-					try {
-						ExifInterface exif = new ExifInterface(
-								imageFile.getPath());
-						switch (exif.getAttributeInt(
-								ExifInterface.TAG_ORIENTATION,
-								ExifInterface.ORIENTATION_NORMAL)) {
-						case ExifInterface.ORIENTATION_ROTATE_90:
-							degrees = 90;
-							break;
-						case ExifInterface.ORIENTATION_ROTATE_180:
-							degrees = 180;
-							break;
-						case ExifInterface.ORIENTATION_ROTATE_270:
-							degrees = 270;
-							break;
-						default:
-							degrees = 0;
-							break;
-						}
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-
-					Bitmap bitmap = BitmapHelper.getResizedBitmap(imageFile,
-							BitmapHelper.MAX_IMAGE_WIDTH,
-							BitmapHelper.MAX_IMAGE_HEIGHT, degrees);
-
-					TodoListItem item = new TodoListItem();
-					item.uuid = UUID.randomUUID().toString();
-					item.title = "";
-					item.description = "";
-					item.bDone = false;
-					item.hasImage = true;
-					item.creDateMillis = System.currentTimeMillis();
-					item.modDateMillis = System.currentTimeMillis();
-					item.creContactId = mManager.getLocalContactId();
-					item.modContactId = mManager.getLocalContactId();
-
-					StringBuilder msg = new StringBuilder(
-							getString(R.string.feed_msg_added_photo, mManager.getLocalName()));
-					String plainMsg = UIUtils.getPlainString(mManager.getBentoListItem().bento.name, msg.toString());
-					
-					mManager.addTodo(item, bitmap, plainMsg);
-					
-					refreshView();
+				if (DEBUG) Log.d(TAG, "data URI: " + uri.toString());
+			} else if (requestCode != REQUEST_IMAGE_CAPTURE) {
+				return;
+			}
 
-					JpgFileHelper.deleteTmpFile();
+			TodoListItem item = new TodoListItem();
+			item.uuid = UUID.randomUUID().toString();
+			item.title = "";
+			item.description = "";
+			item.bDone = false;
+			item.hasImage = true;
+			item.creDateMillis = System.currentTimeMillis();
+			item.modDateMillis = System.currentTimeMillis();
+			item.creContactId = mManager.getLocalContactId();
+			item.modContactId = mManager.getLocalContactId();
+
+			StringBuilder msg = new StringBuilder(
+					getString(R.string.feed_msg_added_photo, mManager.getLocalName()));
+			String plainMsg = UIUtils.getPlainString(mManager.getBentoListItem().bento.name, msg.toString());
+
+			// shown with the placeholder right away, the image follows
+			// (or the todo goes away) once ingested
+			mManager.addTodo(item, null, plainMsg);
+			refreshView();
+
+			ImageIngest.OnIngestFinishedListener listener = new ImageIngest.OnIngestFinishedListener() {
+				@Override
+				public void onIngestFinished(String todoUuid, boolean bSucceeded) {
+					if (isAdded()) {
+						refreshView();
+					}
 				}
-
-			} catch (Exception e) {
-				e.printStackTrace();
+			};
+			if (captureFile != null) {
+				new ImageIngest(getActivity(), item, captureFile, listener).start();
+			} else {
+				new ImageIngest(getActivity(), item, uri, listener).start();
 			}
 		}
 	}
@@ -22,8 +22,41 @@ public class TodoListItem {
 	public String title;
 	public String description;
 	public boolean hasImage;
+	// content hash of the image, null for images posted before hashes
+	public String imageHash;
 	public long creDateMillis;
 	public long modDateMillis;
 	public String creContactId;
 	public String modContactId;
+	// position key, see Bento.compareOrder()
+	public String rank;
+	public long rankDateMillis;
+	
+	public TodoListItem() {
+	}
+	
+	// Items in a published Bento are never changed, edit a copy instead
+	public TodoListItem(TodoListItem src) {
+		uuid = src.uuid;
+		bDone = src.bDone;
+		title = src.title;
+		description = src.description;
+		hasImage = src.hasImage;
+		imageHash = src.imageHash;
+		creDateMillis = src.creDateMillis;
+		modDateMillis = src.modDateMillis;
+		creContactId = src.creContactId;
+		modContactId = src.modContactId;
+		rank = src.rank;
+		rankDateMillis = src.rankDateMillis;
+	}
+	
+	// what the image is looked up and cached by, null without an image :
+	// todos showing the same picture share it
+	public String getImageKey() {
+		if (imageHash != null) {
+			return imageHash;
+		}
+		return hasImage ? uuid : null;
+	}
 }
@@ -18,14 +18,14 @@ package mobisocial.bento.todo.ui;
 
 import leoliang.tasks365.DraggableListView;
 import mobisocial.bento.todo.R;
+import mobisocial.bento.todo.io.Bento;
 import mobisocial.bento.todo.io.BentoManager;
-import mobisocial.bento.todo.util.BitmapHelper;
 import mobisocial.bento.todo.util.ImageCache;
+import mobisocial.bento.todo.util.ImageLoader;
 import mobisocial.bento.todo.util.UIUtils;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -47,6 +47,14 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 	private int mDraggingPosition = -1;
 	private DraggableListView mDraggableListView = null;
 	private Context mContext = null;
+	// the list shown, count and items stay consistent until the next notify
+	private Bento mSnapshot = null;
+	private ImageLoader mImageLoader = new ImageLoader(new ImageLoader.Source() {
+		@Override
+		public Bitmap load(String imageKey, int width, int height) {
+			return mManager.getTodoBitmap(imageKey, width, height, 0);
+		}
+	}, IMG_WIDTH, IMG_HEIGHT);
 
 	public TodoListItemAdapter(Context context, int resourceId,
 			DraggableListView listView) {
@@ -55,18 +63,26 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 		mInflater = (LayoutInflater) context
 				.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
 		mDraggableListView = listView;
+		ImageCache.init(context);
+		takeSnapshot();
+	}
+
+	@Override
+	public void notifyDataSetChanged() {
+		takeSnapshot();
+		super.notifyDataSetChanged();
 	}
 
 	@Override
 	public int getCount() {
-		int count = mManager.getTodoListCount();
+		int count = (mSnapshot != null) ? mSnapshot.todoList.size() : 0;
 		if (DEBUG) Log.d(TAG, "getCount: " + count);
 		return count;
 	}
 
 	@Override
 	public TodoListItem getItem(int position) {
-		return mManager.getTodoListItem(position);
+		return mSnapshot.todoList.get(position);
 	}
 
 	@Override
@@ -98,21 +114,22 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 		holder.check.setOnClickListener(new OnClickListener() {
 			public void onClick(View view) {
 				// Log.d(TAG, "onCheckedChanged");
-				item.bDone = holder.check.isChecked();
-				item.modDateMillis = System.currentTimeMillis();
-				item.modContactId = mManager.getLocalContactId();
+				TodoListItem newItem = new TodoListItem(item);
+				newItem.bDone = holder.check.isChecked();
+				newItem.modDateMillis = System.currentTimeMillis();
+				newItem.modContactId = mManager.getLocalContactId();
 
 				CharSequence baseMsg;
 				Resources rsrc = mDraggableListView.getResources();
-				if (item.bDone) {
-					if (item.title.length() > 0) {
-						baseMsg = rsrc.getString(R.string.feed_msg_done, mManager.getLocalName(), item.title);
+				if (newItem.bDone) {
+					if (newItem.title.length() > 0) {
+						baseMsg = rsrc.getString(R.string.feed_msg_done, mManager.getLocalName(), newItem.title);
 					} else {
 						baseMsg = rsrc.getString(R.string.feed_msg_done_notitle, mManager.getLocalName());
 					}
 				} else {
-					if (item.title.length() > 0) {
-						baseMsg = rsrc.getString(R.string.feed_msg_undone, mManager.getLocalName(), item.title);
+					if (newItem.title.length() > 0) {
+						baseMsg = rsrc.getString(R.string.feed_msg_undone, mManager.getLocalName(), newItem.title);
 					} else {
 						baseMsg = rsrc.getString(R.string.feed_msg_undone_notitle, mManager.getLocalName());
 					}
@@ -120,7 +137,7 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 				StringBuilder msg = new StringBuilder(baseMsg);
 				String plainMsg = UIUtils.getPlainString(mManager.getBentoListItem().bento.name, msg.toString());
 				
-				mManager.updateTodo(item, plainMsg);
+				mManager.updateTodo(newItem, plainMsg);
 				notifyDataSetChanged();
 			}
 		});
@@ -154,24 +171,7 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 		// Set Image
 		if (item.hasImage) {
 			try {
-				holder.imageView.setTag(item.uuid);
-
-				holder.imageView.setImageBitmap(
-						BitmapHelper.getDummyBitmap(IMG_WIDTH, IMG_HEIGHT));
-				//ImageGetTask task = new ImageGetTask(holder.imageView);
-				//task.execute(item.uuid);
-				
-				Bitmap bitmap = ImageCache.getImage(item.uuid);
-				if (bitmap == null) {
-					holder.imageView.setImageBitmap(
-							BitmapHelper.getDummyBitmap(IMG_WIDTH, IMG_HEIGHT));
-					ImageGetTask task = new ImageGetTask(holder.imageView);
-					task.execute(item.uuid);
-				} else {
-					holder.imageView.setImageBitmap(bitmap);
-					holder.imageView.setVisibility(View.VISIBLE);
-				}
-				
+				mImageLoader.load(item.getImageKey(), holder.imageView);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -182,6 +182,7 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 				holder.imageView.setAlpha(255);
 			}
 		} else {
+			mImageLoader.unbind(holder.imageView);
 			holder.imageView.setVisibility(View.GONE);
 		}
 
@@ -206,41 +207,26 @@ public class TodoListItemAdapter extends ArrayAdapter<TodoListItem> {
 		ImageView imageView;
 	}
 
-	class ImageGetTask extends AsyncTask<String, Void, Bitmap> {
-		private ImageView image;
-		private String tag;
-
-		public ImageGetTask(ImageView imageView) {
-			image = imageView;
-			tag = image.getTag().toString();
-		}
-
-		@Override
-		protected Bitmap doInBackground(String... params) {
-			synchronized (mContext) {
-				try {
-					Bitmap bitmap = mManager.getTodoBitmap(params[0], IMG_WIDTH, IMG_HEIGHT, 0);
-					if (bitmap != null) {
-						ImageCache.setImage(params[0], bitmap);
-					}
-					return bitmap;
-				} catch (Exception e) {
-					return null;
-				}
+	// warms the cache for a row not shown yet
+	public void prefetchImage(int position) {
+		if (mSnapshot != null && position >= 0 && position < mSnapshot.todoList.size()) {
+			TodoListItem item = mSnapshot.todoList.get(position);
+			if (item.hasImage) {
+				mImageLoader.prefetch(item.getImageKey());
 			}
 		}
+	}
 
-		@Override
-		protected void onPostExecute(Bitmap result) {
-			if (tag.equals(image.getTag())) {
-				if (result != null) {
-					image.setImageBitmap(result);
-				} else {
-					image.setImageBitmap(BitmapHelper.getDummyBitmap(
-							IMG_WIDTH, IMG_HEIGHT));
-				}
-				image.setVisibility(View.VISIBLE);
-			}
-		}
+	public void cancelPrefetches() {
+		mImageLoader.cancelPrefetches();
+	}
+
+	public ImageLoader getImageLoader() {
+		return mImageLoader;
+	}
+
+	private void takeSnapshot() {
+		BentoListItem bentoItem = mManager.getBentoListItem();
+		mSnapshot = (bentoItem != null) ? bentoItem.bento : null;
 	}
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.ui;
+
+import leoliang.tasks365.DraggableListView;
+import mobisocial.bento.todo.util.UIUtils;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Loads the thumbnails of the next screenful of todos in the direction
+ * the list scrolls, so rows come into view with their image.
+ * Nothing is prefetched while flinging or dragging an item (rows fly by
+ * too fast to be worth it), and what is queued is dropped when the
+ * direction reverses.
+ */
+class TodoListPrefetcher implements OnScrollListener {
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+	private static final String TAG = "TodoListPrefetcher";
+	// rows per second above which a touch scroll is treated as a fling
+	private static final float MAX_ROWS_PER_SECOND = 20;
+
+	private final DraggableListView mListView;
+	private final TodoListItemAdapter mAdapter;
+	private int mScrollState = SCROLL_STATE_IDLE;
+	private int mPrevFirstVisible = -1;
+	private long mPrevMillis = 0;
+	// 1 : down, -1 : up
+	private int mDirection = 1;
+	private float mRowsPerSecond = 0;
+
+	public TodoListPrefetcher(DraggableListView listView, TodoListItemAdapter adapter) {
+		mListView = listView;
+		mAdapter = adapter;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		mScrollState = scrollState;
+		if (scrollState == SCROLL_STATE_FLING) {
+			mAdapter.cancelPrefetches();
+		} else if (scrollState == SCROLL_STATE_IDLE) {
+			mRowsPerSecond = 0;
+			prefetch(view.getFirstVisiblePosition(), view.getChildCount(), view.getCount());
+			if (DEBUG) Log.d(TAG, mAdapter.getImageLoader().getStats());
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem,
+			int visibleItemCount, int totalItemCount) {
+		if (visibleItemCount == 0 || firstVisibleItem == mPrevFirstVisible) {
+			return;
+		}
+
+		long now = SystemClock.uptimeMillis();
+		if (mPrevFirstVisible >= 0) {
+			int direction = (firstVisibleItem > mPrevFirstVisible) ? 1 : -1;
+			long elapsed = Math.max(1, now - mPrevMillis);
+			mRowsPerSecond = Math.abs(firstVisibleItem - mPrevFirstVisible) * 1000f / elapsed;
+			if (direction != mDirection) {
+				mAdapter.cancelPrefetches();
+				mDirection = direction;
+			}
+		}
+		mPrevFirstVisible = firstVisibleItem;
+		mPrevMillis = now;
+
+		prefetch(firstVisibleItem, visibleItemCount, totalItemCount);
+	}
+
+	private void prefetch(int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (mScrollState == SCROLL_STATE_FLING || mListView.isDragging()
+				|| mRowsPerSecond > MAX_ROWS_PER_SECOND || visibleItemCount == 0) {
+			return;
+		}
+
+		int start = (mDirection > 0) ? firstVisibleItem + visibleItemCount : firstVisibleItem - 1;
+		for (int i = 0; i < visibleItemCount; i++) {
+			int position = start + i * mDirection;
+			if (position < 0 || position >= totalItemCount) {
+				break;
+			}
+			mAdapter.prefetchImage(position);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.io.InputStream;
+
+/**
+ * Bytes of base64 text, decoded as they are read instead of into one
+ * array up front (android.util.Base64InputStream needs API 8).
+ * Line breaks and other whitespace are skipped, both the default and the
+ * url safe alphabets are accepted. Decoding stops at padding or at the
+ * first character that is not base64.
+ */
+public class Base64DecoderStream extends InputStream {
+	private static final int[] DECODE = new int[128];
+	static {
+		for (int i = 0; i < DECODE.length; i++) {
+			DECODE[i] = -1;
+		}
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			DECODE[alphabet.charAt(i)] = i;
+		}
+		DECODE['-'] = 62;
+		DECODE['_'] = 63;
+	}
+
+	private final CharSequence mText;
+	private int mPosition = 0;
+	private boolean bEnd = false;
+	// up to 3 bytes decoded and not read yet
+	private final byte[] mBytes = new byte[3];
+	private int mByteCount = 0;
+	private int mByteIndex = 0;
+
+	public Base64DecoderStream(CharSequence text) {
+		mText = text;
+	}
+
+	@Override
+	public int read() {
+		if (mByteIndex == mByteCount && !fill()) {
+			return -1;
+		}
+		return mBytes[mByteIndex++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		int count = 0;
+		while (count < length) {
+			if (mByteIndex == mByteCount && !fill()) {
+				break;
+			}
+			int n = Math.min(length - count, mByteCount - mByteIndex);
+			System.arraycopy(mBytes, mByteIndex, buffer, offset + count, n);
+			mByteIndex += n;
+			count += n;
+		}
+		return (count > 0) ? count : -1;
+	}
+
+	@Override
+	public int available() {
+		return (mByteCount - mByteIndex) + (mText.length() - mPosition) * 3 / 4;
+	}
+
+	// next quantum of up to 4 characters
+	private boolean fill() {
+		mByteIndex = 0;
+		mByteCount = 0;
+		if (bEnd) {
+			return false;
+		}
+
+		int bits = 0;
+		int chars = 0;
+		while (chars < 4 && mPosition < mText.length()) {
+			char ch = mText.charAt(mPosition++);
+			int value = (ch < DECODE.length) ? DECODE[ch] : -1;
+			if (value >= 0) {
+				bits = (bits << 6) | value;
+				chars++;
+			} else if (!Character.isWhitespace(ch)) {
+				// padding or garbage
+				bEnd = true;
+				break;
+			}
+		}
+		if (mPosition >= mText.length()) {
+			bEnd = true;
+		}
+
+		switch (chars) {
+		case 4:
+			mBytes[0] = (byte) (bits >> 16);
+			mBytes[1] = (byte) (bits >> 8);
+			mBytes[2] = (byte) bits;
+			mByteCount = 3;
+			break;
+		case 3:
+			bits <<= 6;
+			mBytes[0] = (byte) (bits >> 16);
+			mBytes[1] = (byte) (bits >> 8);
+			mByteCount = 2;
+			break;
+		case 2:
+			bits <<= 12;
+			mBytes[0] = (byte) (bits >> 16);
+			mByteCount = 1;
+			break;
+		default:
+			// a single character carries no whole byte
+			break;
+		}
+		return mByteCount > 0;
+	}
+}
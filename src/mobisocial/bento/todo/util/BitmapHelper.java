@@ -18,22 +18,36 @@ package mobisocial.bento.todo.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
-import android.graphics.RectF;
 
 public class BitmapHelper {
 	public static final int MAX_IMAGE_WIDTH = 320;
 	public static final int MAX_IMAGE_HEIGHT = 320;
+	
+	public static final String FORMAT_JPEG = "image/jpeg";
+	public static final String FORMAT_WEBP = "image/webp";
+	// quality searched for posted images : above the max the eye hardly
+	// tells the difference, below the min artifacts show
+	private static final int ENCODE_MAX_QUALITY = 85;
+	private static final int ENCODE_MIN_QUALITY = 40;
+	
+	public static class EncodedImage {
+		public byte[] data;
+		public String format;
+		public int quality;
+	}
+	
+	// "widthxheight" -> placeholder, one shared instance per size
+	private static HashMap<String, Bitmap> sPlaceholders = new HashMap<String, Bitmap>();
 
 	public static byte[] bitmapToBytes(Bitmap bitmap) {
 		ByteArrayOutputStream stream = new ByteArrayOutputStream();
@@ -42,50 +56,183 @@ public class BitmapHelper {
 		return byteArray;
 	}
 
-	public static Bitmap getResizedBitmap(File file, int targetWidth,
-			int targetHeight, float degrees) {
-		Bitmap ret = null;
+	// The best quality within maxBytes, capped at ENCODE_MAX_QUALITY.
+	// Jpeg is used whenever it fits at that cap, everybody decodes it.
+	// Otherwise WebP (Ice Cream Sandwich and later) is taken when it fits
+	// at a higher quality than jpeg. At the min quality the smaller wins.
+	public static EncodedImage encodeImage(Bitmap bitmap, int maxBytes) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream(maxBytes);
+		EncodedImage jpeg = encodeImage(bitmap, Bitmap.CompressFormat.JPEG, FORMAT_JPEG, maxBytes, stream);
+		if (jpeg.quality == ENCODE_MAX_QUALITY && jpeg.data.length <= maxBytes) {
+			return jpeg;
+		}
+		if (!UIUtils.isIceCreamSandwich()) {
+			return jpeg;
+		}
 
-		if (file == null) {
-		} else {
-			BitmapFactory.Options option = new BitmapFactory.Options();
-			Bitmap src = null;
-			int sampleSize = 0;
-
-			option.inJustDecodeBounds = true;
-			BitmapFactory.decodeFile(file.getAbsolutePath(), option);
-			// more than 1MP
-			if ((option.outWidth * option.outHeight) > 1048576) {
-				double out_area = (double) (option.outWidth * option.outHeight) / 1048576.0;
-				sampleSize = (int) (Math.sqrt(out_area) + 1);
+		EncodedImage webp = encodeImage(bitmap, Bitmap.CompressFormat.WEBP, FORMAT_WEBP, maxBytes, stream);
+		boolean bJpegFits = jpeg.data.length <= maxBytes;
+		boolean bWebpFits = webp.data.length <= maxBytes;
+		if (bWebpFits && (!bJpegFits || webp.quality > jpeg.quality)) {
+			return webp;
+		}
+		if (!bJpegFits && !bWebpFits && webp.data.length < jpeg.data.length) {
+			return webp;
+		}
+		return jpeg;
+	}
+
+	// binary search of the highest quality fitting, the min when none does
+	private static EncodedImage encodeImage(Bitmap bitmap, Bitmap.CompressFormat compressFormat,
+			String format, int maxBytes, ByteArrayOutputStream stream) {
+		EncodedImage encoded = new EncodedImage();
+		encoded.format = format;
+
+		// the cap first, most images fit at it
+		int low = ENCODE_MIN_QUALITY;
+		int high = ENCODE_MAX_QUALITY;
+		int quality = high;
+		while (low <= high) {
+			stream.reset();
+			bitmap.compress(compressFormat, quality, stream);
+			if (stream.size() <= maxBytes) {
+				encoded.data = stream.toByteArray();
+				encoded.quality = quality;
+				low = quality + 1;
 			} else {
-				sampleSize = 1;
+				high = quality - 1;
 			}
+			quality = (low + high) / 2;
+		}
 
-			option.inJustDecodeBounds = false;
-			option.inSampleSize = sampleSize;
-			src = BitmapFactory.decodeFile(file.getAbsolutePath(), option);
-			if (src == null) {
-			} else {
-				ret = getResizedBitmap(src, targetWidth, targetHeight, degrees);
+		if (encoded.data == null) {
+			// nothing fits, the smallest it gets
+			stream.reset();
+			bitmap.compress(compressFormat, ENCODE_MIN_QUALITY, stream);
+			encoded.data = stream.toByteArray();
+			encoded.quality = ENCODE_MIN_QUALITY;
+		}
+		return encoded;
+	}
+
+	// SHA-1 of the encoded bytes in hex, what images are stored under
+	public static String hashImage(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+			StringBuilder hash = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hash.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hash.append(Character.forDigit(b & 0xf, 16));
 			}
+			return hash.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every platform has SHA-1
+			throw new RuntimeException(e);
 		}
+	}
 
-		return ret;
+	// todo uuids have dashes, content hashes don't
+	public static boolean isImageHash(String imageKey) {
+		return imageKey.length() == 40 && imageKey.indexOf('-') < 0;
+	}
+
+	// decoders of older platforms don't know WebP
+	public static boolean canDecode(String format) {
+		return !FORMAT_WEBP.equals(format) || UIUtils.isIceCreamSandwich();
 	}
 
+	// sampled down while decoded, then fitted and rotated in one draw
+	public static Bitmap getResizedBitmap(File file, int targetWidth,
+			int targetHeight, float degrees) {
+		if (file == null) {
+			return null;
+		}
+		return new BitmapTransform().fit(targetWidth, targetHeight).rotate(degrees)
+				.pooled(true).decode(file.getAbsolutePath());
+	}
+
+	// drawn into a bitmap from BitmapPool, src is left as it is
 	public static Bitmap getResizedBitmap(Bitmap src, int targetWidth,
 			int targetHeight, float degrees) {
-		int srcWidth = src.getWidth();
-		int srcHeight = src.getHeight();
+		return new BitmapTransform().fit(targetWidth, targetHeight).rotate(degrees)
+				.pooled(true).apply(src);
+	}
 
+	// Decodes base64 text as a stream, at the size fitting the target in
+	// one step : bounds are read first, then the decoder samples down by a
+	// power of two and scales the rest through densities. Neither the
+	// decoded bytes nor a full resolution bitmap are ever held.
+	public static Bitmap decodeBase64Bitmap(String b64, int targetWidth, int targetHeight) {
+		BitmapFactory.Options option = new BitmapFactory.Options();
+		option.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(new Base64DecoderStream(b64), null, option);
+		if (option.outWidth <= 0 || option.outHeight <= 0) {
+			return null;
+		}
+
+		int srcWidth = option.outWidth;
+		int srcHeight = option.outHeight;
 		float scale = getFitScale(targetWidth, targetHeight, srcWidth, srcHeight);
+		int width = Math.max(1, Math.round(srcWidth * scale));
+		int height = Math.max(1, Math.round(srcHeight * scale));
+
+		int sampleSize = 1;
+		while (srcWidth / (sampleSize * 2) >= width && srcHeight / (sampleSize * 2) >= height) {
+			sampleSize *= 2;
+		}
+		int sampledWidth = (srcWidth + sampleSize - 1) / sampleSize;
+
+		option.inJustDecodeBounds = false;
+		option.inSampleSize = sampleSize;
+		option.inPreferredConfig = Config.ARGB_8888;
+		if (UIUtils.isHoneycomb()) {
+			// so it can go to BitmapPool once evicted
+			option.inMutable = true;
+		}
+		if (sampledWidth != width) {
+			option.inScaled = true;
+			option.inDensity = sampledWidth;
+			option.inTargetDensity = width;
+		}
+		BitmapPool.countAllocation();
+		Bitmap bitmap = BitmapFactory.decodeStream(new Base64DecoderStream(b64), null, option);
+		if (bitmap != null) {
+			// densities were only a way to scale, draw it pixel for pixel
+			bitmap.setDensity(Bitmap.DENSITY_NONE);
+		}
+		return bitmap;
+	}
 
-		Matrix matrix = new Matrix();
-		matrix.postScale(scale, scale);
-		matrix.postRotate(degrees);
+	// Decodes over a pooled bitmap of the same size when there is one
+	// (Honeycomb and later), the result can go back to BitmapPool.
+	public static Bitmap decodePooledBitmap(String path) {
+		if (!UIUtils.isHoneycomb()) {
+			BitmapPool.countAllocation();
+			return BitmapFactory.decodeFile(path);
+		}
 
-		return Bitmap.createBitmap(src, 0, 0, srcWidth, srcHeight, matrix, true);
+		BitmapFactory.Options option = new BitmapFactory.Options();
+		option.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, option);
+		if (option.outWidth <= 0 || option.outHeight <= 0) {
+			return null;
+		}
+
+		option.inJustDecodeBounds = false;
+		option.inPreferredConfig = Config.ARGB_8888;
+		option.inMutable = true;
+		option.inSampleSize = 1;
+		option.inBitmap = BitmapPool.poll(option.outWidth, option.outHeight, Config.ARGB_8888);
+		if (option.inBitmap == null) {
+			BitmapPool.countAllocation();
+		}
+		try {
+			return BitmapFactory.decodeFile(path, option);
+		} catch (IllegalArgumentException e) {
+			option.inBitmap = null;
+			BitmapPool.countAllocation();
+			return BitmapFactory.decodeFile(path, option);
+		}
 	}
 
 	public static float getFitScale(int targetWidth, int targetHeight,
@@ -115,6 +262,18 @@ public class BitmapHelper {
 		return ret;
 	}
 
+	// Shared by every row waiting for its image. Never drawn into, never
+	// put into BitmapPool.
+	synchronized public static Bitmap getPlaceholderBitmap(int targetWidth, int targetHeight) {
+		String key = targetWidth + "x" + targetHeight;
+		Bitmap bitmap = sPlaceholders.get(key);
+		if (bitmap == null) {
+			bitmap = getDummyBitmap(targetWidth, targetHeight);
+			sPlaceholders.put(key, bitmap);
+		}
+		return bitmap;
+	}
+
 	public static Bitmap getDummyBitmap(int targetWidth, int targetHeight) {
 		Bitmap bitmap = Bitmap.createBitmap(targetWidth, targetHeight, Bitmap.Config.ARGB_8888);
 		Canvas canvas = new Canvas(bitmap);
@@ -126,37 +285,10 @@ public class BitmapHelper {
 	}
 
 	public static Bitmap getRoundedCornerBitmap(Bitmap bitmap, int pixels) {
-		Bitmap output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Config.ARGB_8888);
-		Canvas canvas = new Canvas(output);
-
-		final int color = 0xff424242;
-		final Paint paint = new Paint();
-		final Rect rect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-		final RectF rectF = new RectF(rect);
-		final float roundPx = pixels;
-
-		paint.setAntiAlias(true);
-		canvas.drawARGB(0, 0, 0, 0);
-		paint.setColor(color);
-		canvas.drawRoundRect(rectF, roundPx, roundPx, paint);
-		// paint.setShadowLayer(10.0f, 0.0f, 2.0f, 0xFF000000);
-
-		paint.setXfermode(new PorterDuffXfermode(Mode.SRC_IN));
-
-		canvas.drawBitmap(bitmap, rect, rect, paint);
-
-		return output;
+		return new BitmapTransform().roundCorners(pixels).apply(bitmap);
 	}
 
 	public static Bitmap getScreenFitBitmap(Bitmap src, int dispWidth, int dispHeight) {
-		int srcWidth = src.getWidth();
-		int srcHeight = src.getHeight();
-
-		float scale = (float) dispWidth / srcWidth;
-
-		Matrix matrix = new Matrix();
-		matrix.postScale(scale, scale);
-
-		return Bitmap.createBitmap(src, 0, 0, srcWidth, srcHeight, matrix, true);
+		return new BitmapTransform().fitWidth(dispWidth).apply(src);
 	}
 }
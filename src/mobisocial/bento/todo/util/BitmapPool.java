@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+/**
+ * Mutable bitmaps nobody shows anymore, bucketed by size and config, handed
+ * out again to decode (inBitmap) and resize into instead of allocating.
+ * Safe to use from any thread. A bitmap must not be used after put().
+ */
+public class BitmapPool {
+	private static final String TAG = "BitmapPool";
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+
+	private static final long MAX_BYTES = 2 * 1024 * 1024;
+
+	private static HashMap<String, ArrayList<Bitmap>> sBuckets = new HashMap<String, ArrayList<Bitmap>>();
+	private static long sBytes = 0;
+	private static int sAllocationCount = 0;
+	private static int sReuseCount = 0;
+
+	// a cleared pooled bitmap, or a new one
+	synchronized public static Bitmap get(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = poll(width, height, config);
+		if (bitmap != null) {
+			bitmap.eraseColor(Color.TRANSPARENT);
+		} else {
+			bitmap = Bitmap.createBitmap(width, height, config);
+			sAllocationCount++;
+		}
+		return bitmap;
+	}
+
+	// a pooled bitmap as it is (to be decoded over), null when none
+	synchronized public static Bitmap poll(int width, int height, Bitmap.Config config) {
+		ArrayList<Bitmap> bucket = sBuckets.get(makeKey(width, height, config));
+		if (bucket == null || bucket.isEmpty()) {
+			return null;
+		}
+		Bitmap bitmap = bucket.remove(bucket.size() - 1);
+		sBytes -= getBytes(bitmap);
+		sReuseCount++;
+		return bitmap;
+	}
+
+	// counts a bitmap allocated by a decode that found nothing to reuse
+	synchronized public static void countAllocation() {
+		sAllocationCount++;
+	}
+
+	synchronized public static void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+				|| bitmap.getConfig() == null || sBytes + getBytes(bitmap) > MAX_BYTES) {
+			// left to the garbage collector
+			return;
+		}
+		String key = makeKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		ArrayList<Bitmap> bucket = sBuckets.get(key);
+		if (bucket == null) {
+			bucket = new ArrayList<Bitmap>();
+			sBuckets.put(key, bucket);
+		}
+		bucket.add(bitmap);
+		sBytes += getBytes(bitmap);
+	}
+
+	synchronized public static void clear() {
+		sBuckets.clear();
+		sBytes = 0;
+	}
+
+	synchronized public static int getAllocationCount() {
+		return sAllocationCount;
+	}
+
+	synchronized public static int getReuseCount() {
+		return sReuseCount;
+	}
+
+	synchronized public static String getStats() {
+		String stats = "bytes:" + sBytes + " allocations:" + sAllocationCount + " reuses:" + sReuseCount;
+		if (DEBUG) Log.d(TAG, stats);
+		return stats;
+	}
+
+	private static String makeKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+
+	private static long getBytes(Bitmap bitmap) {
+		return (long) bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
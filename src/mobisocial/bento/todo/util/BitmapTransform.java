@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Scale, rotate and round corner steps chained in order, then applied as
+ * one matrix in a single draw into a single output bitmap (from
+ * BitmapPool when pooled). Decoding from a file samples down as far as
+ * the chain allows first. Results can be memoized in ImageCache under the
+ * source key plus getSignature().
+ *
+ * new BitmapTransform().fit(320, 320).rotate(90).roundCorners(8).apply(src)
+ */
+public class BitmapTransform {
+	private static final int OP_FIT = 0;
+	private static final int OP_FIT_WIDTH = 1;
+	private static final int OP_SCALE = 2;
+	private static final int OP_ROTATE = 3;
+
+	private static class Op {
+		public final int type;
+		public final float a;
+		public final float b;
+
+		public Op(int type, float a, float b) {
+			this.type = type;
+			this.a = a;
+			this.b = b;
+		}
+	}
+
+	private final ArrayList<Op> mOps = new ArrayList<Op>();
+	private final StringBuilder mSignature = new StringBuilder();
+	// output pixels, drawn last
+	private float mCornerRadius = 0;
+	private boolean bPooled = false;
+
+	// ----------------------------------------------------------
+	// Steps
+	// ----------------------------------------------------------
+	// as large as fits in the box (BitmapHelper.getFitScale)
+	public BitmapTransform fit(int width, int height) {
+		return add(OP_FIT, width, height, "fit" + width + "x" + height);
+	}
+
+	// as wide as the width, the height follows
+	public BitmapTransform fitWidth(int width) {
+		return add(OP_FIT_WIDTH, width, 0, "w" + width);
+	}
+
+	public BitmapTransform scale(float scale) {
+		if (scale == 1) {
+			return this;
+		}
+		return add(OP_SCALE, scale, 0, "s" + scale);
+	}
+
+	public BitmapTransform rotate(float degrees) {
+		if (degrees % 360 == 0) {
+			return this;
+		}
+		return add(OP_ROTATE, degrees, 0, "r" + degrees);
+	}
+
+	// clips the result, whatever steps come before or after
+	public BitmapTransform roundCorners(float radius) {
+		mCornerRadius = radius;
+		return this;
+	}
+
+	// drawn into a bitmap from BitmapPool, so the result can go back there
+	public BitmapTransform pooled(boolean bPooled) {
+		this.bPooled = bPooled;
+		return this;
+	}
+
+	// same steps, same signature ; the output size depends on the source too
+	public String getSignature() {
+		if (mCornerRadius <= 0) {
+			return mSignature.toString();
+		}
+		return (mSignature.length() > 0 ? mSignature + "," : "") + "c" + mCornerRadius;
+	}
+
+	// ----------------------------------------------------------
+	// Apply
+	// ----------------------------------------------------------
+	public Bitmap apply(Bitmap src) {
+		return apply(src, 1);
+	}
+
+	// The result for this source key when there is one already. It belongs
+	// to ImageCache, don't put it in BitmapPool.
+	public Bitmap apply(String sourceKey, Bitmap src) {
+		String key = makeKey(sourceKey);
+		Bitmap bitmap = ImageCache.getImage(key);
+		if (bitmap == null) {
+			bitmap = apply(src, 1);
+			ImageCache.setImage(key, bitmap);
+		}
+		return bitmap;
+	}
+
+	// Memoized results share ImageCache with the thumbnails ; a source key
+	// starting with a todo uuid goes with ImageCache.removeImages(uuid).
+	public String makeKey(String sourceKey) {
+		return sourceKey + "_" + getSignature();
+	}
+
+	// Decoded at the largest power of two down that still leaves the
+	// chain scaling down (or not at all), then drawn once.
+	public Bitmap decode(String path) {
+		BitmapFactory.Options option = new BitmapFactory.Options();
+		option.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, option);
+		if (option.outWidth <= 0 || option.outHeight <= 0) {
+			return null;
+		}
+
+		option.inJustDecodeBounds = false;
+		option.inSampleSize = getSampleSize(option.outWidth, option.outHeight);
+		option.inPreferredConfig = Config.ARGB_8888;
+		Bitmap src = BitmapFactory.decodeFile(path, option);
+		if (src == null) {
+			return null;
+		}
+		Bitmap bitmap = apply(src, option.inSampleSize);
+		src.recycle();
+		return bitmap;
+	}
+
+	// for decoders not going through decode(), the chain then applies to
+	// the sampled bitmap as it is
+	public int getSampleSize(int srcWidth, int srcHeight) {
+		Matrix matrix = new Matrix();
+		build(matrix, srcWidth, srcHeight);
+		// scale and rotation only, the radius of a unit circle is the scale
+		float scale = matrix.mapRadius(1);
+		int sampleSize = 1;
+		while (scale > 0 && sampleSize * 2 * scale <= 1) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	// src sampled down by sampleSize from what the steps were meant for
+	private Bitmap apply(Bitmap src, int sampleSize) {
+		Matrix matrix = new Matrix();
+		matrix.postScale(sampleSize, sampleSize);
+		RectF bounds = build(matrix, src.getWidth(), src.getHeight());
+		int width = Math.max(1, Math.round(bounds.width()));
+		int height = Math.max(1, Math.round(bounds.height()));
+		matrix.postTranslate(-bounds.left, -bounds.top);
+
+		Bitmap bitmap = bPooled ? BitmapPool.get(width, height, Config.ARGB_8888)
+				: Bitmap.createBitmap(width, height, Config.ARGB_8888);
+		Canvas canvas = new Canvas(bitmap);
+		if (mCornerRadius > 0) {
+			// the source is the paint of the rounded rect, no copy to clip
+			BitmapShader shader = new BitmapShader(src, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+			shader.setLocalMatrix(matrix);
+			Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+			paint.setShader(shader);
+			canvas.drawRoundRect(new RectF(0, 0, width, height), mCornerRadius, mCornerRadius, paint);
+		} else {
+			canvas.drawBitmap(src, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+		}
+		return bitmap;
+	}
+
+	// steps after what matrix does already, bounds of the result
+	private RectF build(Matrix matrix, int srcWidth, int srcHeight) {
+		RectF bounds = new RectF(0, 0, srcWidth, srcHeight);
+		matrix.mapRect(bounds);
+		for (Op op : mOps) {
+			switch (op.type) {
+			case OP_FIT:
+				float scale = BitmapHelper.getFitScale((int) op.a, (int) op.b,
+						Math.round(bounds.width()), Math.round(bounds.height()));
+				matrix.postScale(scale, scale);
+				break;
+			case OP_FIT_WIDTH:
+				float widthScale = op.a / bounds.width();
+				matrix.postScale(widthScale, widthScale);
+				break;
+			case OP_SCALE:
+				matrix.postScale(op.a, op.a);
+				break;
+			case OP_ROTATE:
+				matrix.postRotate(op.a);
+				break;
+			}
+			bounds.set(0, 0, srcWidth, srcHeight);
+			matrix.mapRect(bounds);
+		}
+		return bounds;
+	}
+
+	private BitmapTransform add(int type, float a, float b, String signature) {
+		mOps.add(new Op(type, a, b));
+		if (mSignature.length() > 0) {
+			mSignature.append(',');
+		}
+		mSignature.append(signature);
+		return this;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Resized thumbnails kept as files, least recently used dropped first
+ * once they take more than the byte budget.
+ * Every put, read and removal is appended to a journal, replayed the
+ * first time the cache is used. The lock only guards the index, files
+ * are read and written outside of it.
+ */
+public class DiskImageCache {
+	private static final String TAG = "DiskImageCache";
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+
+	private static final String JOURNAL_FILE = "journal";
+	private static final String JOURNAL_TMP_FILE = "journal.tmp";
+	private static final String PUT = "PUT";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+	// rewrite the journal once it has this many more lines than entries
+	private static final int JOURNAL_SLACK = 500;
+	private static final int JPEG_QUALITY = 90;
+
+	private final File mDirectory;
+	private final long mMaxBytes;
+	// key -> file size, in access order
+	private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long mBytes = 0;
+	private int mJournalLines = 0;
+	private Writer mJournal = null;
+	private boolean bOpened = false;
+	private int mTmpCount = 0;
+
+	public DiskImageCache(File directory, long maxBytes) {
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+	}
+
+	// keys end up as file names
+	public static String makeKey(String uuid, int width, int height, float degrees) {
+		return uuid + "_" + width + "x" + height + "_" + (int) degrees;
+	}
+
+	// null on a miss, never waits for another put
+	public Bitmap get(String key) {
+		File file;
+		synchronized (this) {
+			open();
+			// also makes it the most recently used
+			if (mEntries.get(key) == null) {
+				return null;
+			}
+			file = getFile(key);
+			appendJournal(READ, key, -1);
+		}
+
+		Bitmap bitmap = BitmapHelper.decodePooledBitmap(file.getPath());
+		if (bitmap == null) {
+			// removed behind our back or broken
+			remove(key);
+		}
+		return bitmap;
+	}
+
+	public void put(String key, Bitmap bitmap) {
+		File tmpFile;
+		synchronized (this) {
+			open();
+			tmpFile = new File(mDirectory, key + "." + (mTmpCount++) + ".tmp");
+		}
+
+		OutputStream out = null;
+		boolean bWritten = false;
+		try {
+			out = new FileOutputStream(tmpFile);
+			bWritten = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to write thumbnail", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					bWritten = false;
+				}
+			}
+		}
+		if (!bWritten) {
+			tmpFile.delete();
+			return;
+		}
+
+		synchronized (this) {
+			File file = getFile(key);
+			if (!tmpFile.renameTo(file)) {
+				tmpFile.delete();
+				return;
+			}
+			Long prevSize = mEntries.put(key, file.length());
+			if (prevSize != null) {
+				mBytes -= prevSize;
+			}
+			mBytes += file.length();
+			appendJournal(PUT, key, file.length());
+			trimToSize();
+		}
+	}
+
+	synchronized public void remove(String key) {
+		open();
+		Long size = mEntries.remove(key);
+		if (size != null) {
+			mBytes -= size;
+			getFile(key).delete();
+			appendJournal(REMOVE, key, -1);
+		}
+	}
+
+	// all sizes of one image
+	synchronized public void removeAll(String uuid) {
+		open();
+		ArrayList<String> keys = new ArrayList<String>();
+		for (String key : mEntries.keySet()) {
+			if (key.startsWith(uuid + "_")) {
+				keys.add(key);
+			}
+		}
+		for (String key : keys) {
+			remove(key);
+		}
+	}
+
+	synchronized public void clear() {
+		open();
+		for (String key : mEntries.keySet()) {
+			getFile(key).delete();
+		}
+		mEntries.clear();
+		mBytes = 0;
+		rewriteJournal();
+	}
+
+	// ----------------------------------------------------------
+	// Journal
+	// ----------------------------------------------------------
+	private void open() {
+		if (bOpened) {
+			return;
+		}
+		bOpened = true;
+		if (!mDirectory.exists()) {
+			mDirectory.mkdirs();
+		}
+
+		File journalFile = new File(mDirectory, JOURNAL_FILE);
+		if (journalFile.exists()) {
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new FileReader(journalFile));
+				String line;
+				while ((line = reader.readLine()) != null) {
+					replayLine(line);
+					mJournalLines++;
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to read journal", e);
+			} finally {
+				if (reader != null) {
+					try {
+						reader.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		}
+
+		// drop entries whose file is gone, and files nobody knows of
+		mBytes = 0;
+		for (Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Long> entry = it.next();
+			File file = getFile(entry.getKey());
+			if (file.exists()) {
+				entry.setValue(file.length());
+				mBytes += file.length();
+			} else {
+				it.remove();
+			}
+		}
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.equals(JOURNAL_FILE)) {
+					continue;
+				}
+				if (!name.endsWith(".jpg") || !mEntries.containsKey(name.substring(0, name.length() - 4))) {
+					file.delete();
+				}
+			}
+		}
+		rewriteJournal();
+		trimToSize();
+
+		if (DEBUG) Log.d(TAG, "open - entries:" + mEntries.size() + " bytes:" + mBytes);
+	}
+
+	private void replayLine(String line) {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) {
+			return;
+		}
+		if (PUT.equals(parts[0]) && parts.length == 3) {
+			try {
+				mEntries.put(parts[1], Long.parseLong(parts[2]));
+			} catch (NumberFormatException e) {
+			}
+		} else if (READ.equals(parts[0])) {
+			// moves it to the most recently used end
+			mEntries.get(parts[1]);
+		} else if (REMOVE.equals(parts[0])) {
+			mEntries.remove(parts[1]);
+		}
+	}
+
+	private void appendJournal(String op, String key, long size) {
+		if (mJournal == null) {
+			return;
+		}
+		try {
+			mJournal.write(op + " " + key + (size >= 0 ? " " + size : "") + "\n");
+			mJournal.flush();
+			mJournalLines++;
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to write journal", e);
+		}
+		if (mJournalLines > mEntries.size() + JOURNAL_SLACK) {
+			rewriteJournal();
+		}
+	}
+
+	// one PUT per entry, least recently used first
+	private void rewriteJournal() {
+		closeJournal();
+		File tmpFile = new File(mDirectory, JOURNAL_TMP_FILE);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new FileWriter(tmpFile));
+			for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+				writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+			}
+			writer.close();
+			writer = null;
+			if (!tmpFile.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+				Log.e(TAG, "Failed to replace journal");
+			}
+			mJournalLines = mEntries.size();
+			mJournal = new BufferedWriter(new FileWriter(new File(mDirectory, JOURNAL_FILE), true));
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to rewrite journal", e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private void closeJournal() {
+		if (mJournal != null) {
+			try {
+				mJournal.close();
+			} catch (IOException e) {
+			}
+			mJournal = null;
+		}
+	}
+
+	private void trimToSize() {
+		while (mBytes > mMaxBytes && !mEntries.isEmpty()) {
+			String eldestKey = mEntries.keySet().iterator().next();
+			remove(eldestKey);
+		}
+	}
+
+	private File getFile(String key) {
+		return new File(mDirectory, key + ".jpg");
+	}
+}
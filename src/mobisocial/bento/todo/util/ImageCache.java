@@ -16,27 +16,211 @@
 
 package mobisocial.bento.todo.util;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.util.Log;
 
+/**
+ * Decoded thumbnails by uuid and size, least recently used dropped first
+ * once their pixels take more than the budget. Safe to use from any thread.
+ * Views showing a cached bitmap acquire() and release() it : a dropped
+ * bitmap goes to BitmapPool once no view shows it. Bitmaps never acquired
+ * may be held by anyone and are left to the garbage collector.
+ */
 public class ImageCache {
+	private static final String TAG = "ImageCache";
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+
+	// share of the app heap used when no context told us the memory class
+	private static final int MEMORY_CLASS_FRACTION = 8;
+	private static final int DEFAULT_MEMORY_CLASS = 16;
+
+	private static LinkedHashMap<String, Bitmap> sCache = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+	private static long sMaxBytes = DEFAULT_MEMORY_CLASS * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+	private static long sBytes = 0;
+	private static boolean bInitialized = false;
+	private static int sHitCount = 0;
+	private static int sMissCount = 0;
+	private static int sEvictionCount = 0;
+	// bitmaps acquired at least once, weak so views gone without a release
+	// don't keep them (Bitmap equality is identity)
+	private static WeakHashMap<Bitmap, Binding> sBindings = new WeakHashMap<Bitmap, Binding>();
+
+	private static class Binding {
+		public int count = 0;
+		public boolean bCached = false;
+	}
+
+	// budget from the memory class of the device, first call only
+	synchronized public static void init(Context context) {
+		if (bInitialized) {
+			return;
+		}
+		bInitialized = true;
+
+		int memoryClass = DEFAULT_MEMORY_CLASS;
+		if (UIUtils.isEclair()) {
+			ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+			memoryClass = am.getMemoryClass();
+		}
+		setMaxBytes((long) memoryClass * 1024 * 1024 / MEMORY_CLASS_FRACTION);
+	}
+
+	synchronized public static void setMaxBytes(long maxBytes) {
+		sMaxBytes = maxBytes;
+		trimToSize();
+	}
+
+	public static String makeKey(String uuid, int width, int height) {
+		return uuid + "_" + width + "x" + height;
+	}
+
+	synchronized public static Bitmap getImage(String key) {
+		Bitmap image = sCache.get(key);
+		if (image != null) {
+			sHitCount++;
+		} else {
+			sMissCount++;
+		}
+		return image;
+	}
+
+	// no statistics counted, for callers only checking
+	synchronized public static boolean containsImage(String key) {
+		return sCache.containsKey(key);
+	}
+
+	synchronized public static void setImage(String key, Bitmap image) {
+		Bitmap prevImage = sCache.put(key, image);
+		if (prevImage != null) {
+			sBytes -= getBytes(prevImage);
+			if (prevImage != image) {
+				release(prevImage, false);
+			}
+		}
+		sBytes += getBytes(image);
+		Binding binding = sBindings.get(image);
+		if (binding != null) {
+			binding.bCached = true;
+		}
+		trimToSize();
+	}
+
+	synchronized public static void removeImage(String key) {
+		Bitmap image = sCache.remove(key);
+		if (image != null) {
+			sBytes -= getBytes(image);
+			release(image, false);
+		}
+	}
 
-	private static HashMap<String, Bitmap> sCache = new HashMap<String, Bitmap>();
+	// ----------------------------------------------------------
+	// Bindings
+	// ----------------------------------------------------------
+	// a view shows the bitmap found under key
+	synchronized public static void acquire(String key, Bitmap image) {
+		Binding binding = sBindings.get(image);
+		if (binding == null) {
+			binding = new Binding();
+			binding.bCached = (sCache.get(key) == image);
+			sBindings.put(image, binding);
+		}
+		binding.count++;
+	}
 
-	public static Bitmap getImage(String key) {
-		if (sCache.containsKey(key)) {
-			return sCache.get(key);
+	// the view shows something else now
+	synchronized public static void release(Bitmap image) {
+		release(image, true);
+	}
+
+	// all sizes of one uuid
+	synchronized public static void removeImages(String uuid) {
+		ArrayList<String> keys = new ArrayList<String>();
+		for (String key : sCache.keySet()) {
+			if (key.startsWith(uuid + "_")) {
+				keys.add(key);
+			}
+		}
+		for (String key : keys) {
+			removeImage(key);
 		}
-		return null;
 	}
 
-	public static void setImage(String key, Bitmap image) {
-		sCache.put(key, image);
+	synchronized public static void clearCache() {
+		ArrayList<Bitmap> images = new ArrayList<Bitmap>(sCache.values());
+		sCache.clear();
+		sBytes = 0;
+		for (Bitmap image : images) {
+			release(image, false);
+		}
+	}
+
+	// ----------------------------------------------------------
+	// Statistics
+	// ----------------------------------------------------------
+	synchronized public static int getHitCount() {
+		return sHitCount;
+	}
+
+	synchronized public static int getMissCount() {
+		return sMissCount;
+	}
+
+	synchronized public static int getEvictionCount() {
+		return sEvictionCount;
+	}
+
+	synchronized public static long getBytes() {
+		return sBytes;
+	}
+
+	synchronized public static String getStats() {
+		return "entries:" + sCache.size() + " bytes:" + sBytes + "/" + sMaxBytes
+				+ " hits:" + sHitCount + " misses:" + sMissCount + " evictions:" + sEvictionCount;
+	}
+
+	private static void trimToSize() {
+		Iterator<Map.Entry<String, Bitmap>> it = sCache.entrySet().iterator();
+		while (sBytes > sMaxBytes && it.hasNext()) {
+			Map.Entry<String, Bitmap> eldest = it.next();
+			sBytes -= getBytes(eldest.getValue());
+			it.remove();
+			sEvictionCount++;
+			// the eldest entry may still be shown, by a row or by a prefetch
+			// bound since
+			release(eldest.getValue(), false);
+		}
+		if (DEBUG) Log.d(TAG, getStats());
+	}
+
+	// by a view (bUnbind), or by the cache once dropped
+	private static void release(Bitmap image, boolean bUnbind) {
+		Binding binding = sBindings.get(image);
+		if (binding == null) {
+			// never shown through acquire(), whoever holds it keeps it
+			return;
+		}
+		if (bUnbind) {
+			if (binding.count > 0) {
+				binding.count--;
+			}
+		} else {
+			binding.bCached = false;
+		}
+		if (binding.count == 0 && !binding.bCached) {
+			sBindings.remove(image);
+			BitmapPool.put(image);
+		}
 	}
 
-	public static void clearCache() {
-		sCache = null;
-		sCache = new HashMap<String, Bitmap>();
+	private static long getBytes(Bitmap image) {
+		return (long) image.getRowBytes() * image.getHeight();
 	}
 }
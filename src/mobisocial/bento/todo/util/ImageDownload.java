@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.util.Log;
+
+/**
+ * A remote image read as a stream, never stored : connect and read
+ * timeouts, a cap on the bytes read, and cancel() from any thread, after
+ * which reads fail. open() can be called again for another pass, the
+ * bytes of every pass count against the cap.
+ */
+public class ImageDownload {
+	private static final String TAG = "ImageDownload";
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+	public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+	private final URL mUrl;
+	private int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+	private long mMaxBytes = DEFAULT_MAX_BYTES;
+	private volatile boolean bCancelled = false;
+	private volatile HttpURLConnection mConnection = null;
+	private long mBytesRead = 0;
+
+	public ImageDownload(URL url) {
+		mUrl = url;
+	}
+
+	public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+		mConnectTimeoutMillis = connectTimeoutMillis;
+		mReadTimeoutMillis = readTimeoutMillis;
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	// the body of a GET, closing it disconnects
+	public InputStream open() throws IOException {
+		checkCancelled();
+		HttpURLConnection http = (HttpURLConnection) mUrl.openConnection();
+		http.setConnectTimeout(mConnectTimeoutMillis);
+		http.setReadTimeout(mReadTimeoutMillis);
+		http.setRequestMethod("GET");
+		mConnection = http;
+		try {
+			// cancel() may have missed the connection
+			checkCancelled();
+			http.connect();
+			int code = http.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("HTTP " + code + " for " + mUrl);
+			}
+			long length = http.getContentLength();
+			if (length > mMaxBytes - getBytesRead()) {
+				throw new IOException(length + " bytes is over the limit of " + mMaxBytes);
+			}
+			if (DEBUG) Log.d(TAG, "open " + mUrl + " length:" + length);
+			return new LimitedInputStream(http, http.getInputStream());
+		} catch (IOException e) {
+			http.disconnect();
+			throw e;
+		}
+	}
+
+	public void cancel() {
+		bCancelled = true;
+		HttpURLConnection http = mConnection;
+		if (http != null) {
+			// blocked reads fail right away
+			http.disconnect();
+		}
+	}
+
+	public boolean isCancelled() {
+		return bCancelled;
+	}
+
+	synchronized public long getBytesRead() {
+		return mBytesRead;
+	}
+
+	private void checkCancelled() throws IOException {
+		if (bCancelled) {
+			throw new InterruptedIOException("cancelled " + mUrl);
+		}
+	}
+
+	synchronized private void count(long bytes) throws IOException {
+		mBytesRead += bytes;
+		if (mBytesRead > mMaxBytes) {
+			throw new IOException("more than " + mMaxBytes + " bytes from " + mUrl);
+		}
+	}
+
+	private class LimitedInputStream extends FilterInputStream {
+		private final HttpURLConnection mHttp;
+
+		public LimitedInputStream(HttpURLConnection http, InputStream in) {
+			super(in);
+			mHttp = http;
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			int b = super.read();
+			// woken up by cancel() on some platforms, by the read timeout on others
+			checkCancelled();
+			if (b >= 0) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			checkCancelled();
+			int n = super.read(buffer, offset, length);
+			checkCancelled();
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			checkCancelled();
+			long skipped = super.skip(n);
+			checkCancelled();
+			if (skipped > 0) {
+				count(skipped);
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				mHttp.disconnect();
+			}
+		}
+	}
+}
@@ -0,0 +1,596 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import mobisocial.bento.todo.io.BentoManager;
+import mobisocial.bento.todo.ui.TodoListItem;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.MediaStore.MediaColumns;
+import android.util.Log;
+
+/**
+ * Turns a camera shot or a gallery pick into the image of a todo already
+ * shown in the list, off the main thread :
+ * resolve source, read bounds and EXIF, decode subsampled, rotate and
+ * scale in one draw, encode and hash here, then post (on the BentoManager
+ * writer).
+ * Each stage is timed. When something fails the todo is removed again.
+ * Content is decoded where it is (file path, seekable descriptor, or a
+ * stream rewound after probing), a private copy is the last resort.
+ * Remote images are streamed the same way through ImageDownload, bounds
+ * from the first bytes, then subsampled as they arrive.
+ */
+public class ImageIngest implements Runnable {
+	private static final String TAG = "ImageIngest";
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+
+	public interface OnIngestFinishedListener {
+		// on the main thread
+		public void onIngestFinished(String todoUuid, boolean bSucceeded);
+	}
+
+	public static final int STAGE_RESOLVE = 0;
+	public static final int STAGE_BOUNDS = 1;
+	public static final int STAGE_DECODE = 2;
+	public static final int STAGE_TRANSFORM = 3;
+	public static final int STAGE_POST = 4;
+	private static final String[] STAGE_NAMES = { "resolve", "bounds", "decode", "transform", "post" };
+
+	// room for the headers read before the first rewind (EXIF with its
+	// thumbnail is up to 64KB), and for the decoder reading ahead
+	private static final int PROBE_BYTES = 128 * 1024;
+	private static final int READ_BUFFER_BYTES = 16 * 1024;
+	private static final long COPY_CHUNK_BYTES = 256 * 1024;
+
+	// one picture at a time, decoding a few MP at once would run out of heap
+	private static final ExecutorService sWorker = Executors.newSingleThreadExecutor();
+	// downloads wait on the network, local picks don't queue behind them
+	private static final ExecutorService sRemoteWorker = Executors.newSingleThreadExecutor();
+	private static final HashSet<ImageIngest> sIngests = new HashSet<ImageIngest>();
+
+	private final Context mContext;
+	private final BentoManager mManager;
+	private final TodoListItem mItem;
+	// one of them, the capture file is deleted once ingested
+	private Uri mUri;
+	private final File mCaptureFile;
+	private final OnIngestFinishedListener mListener;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final long[] mStageMillis = new long[STAGE_NAMES.length];
+	private int mStage = -1;
+	private long mStageStartMillis = 0;
+	// the resolved source, one of them
+	private String mPath = null;
+	private ParcelFileDescriptor mDescriptor = null;
+	private FileInputStream mDescriptorStream = null;
+	private RewindableInputStream mStream = null;
+	// copy of a stream that couldn't be rewound
+	private File mTmpFile = null;
+	// http or https, read again instead of copied
+	private volatile ImageDownload mDownload = null;
+	private volatile boolean bCancelled = false;
+
+	// a gallery pick
+	public ImageIngest(Context context, TodoListItem item, Uri uri, OnIngestFinishedListener listener) {
+		this(context, item, uri, null, listener);
+	}
+
+	// a camera shot
+	public ImageIngest(Context context, TodoListItem item, File captureFile, OnIngestFinishedListener listener) {
+		this(context, item, null, captureFile, listener);
+	}
+
+	private ImageIngest(Context context, TodoListItem item, Uri uri, File captureFile,
+			OnIngestFinishedListener listener) {
+		mContext = context.getApplicationContext();
+		mManager = BentoManager.getInstance();
+		mItem = item;
+		mUri = uri;
+		mCaptureFile = captureFile;
+		mListener = listener;
+	}
+
+	public void start() {
+		synchronized (sIngests) {
+			sIngests.add(this);
+		}
+		if (mUri != null && !isContentUri(mUri)) {
+			sRemoteWorker.execute(this);
+		} else {
+			sWorker.execute(this);
+		}
+	}
+
+	// from any thread, the todo is removed as if the image failed
+	public void cancel() {
+		bCancelled = true;
+		ImageDownload download = mDownload;
+		if (download != null) {
+			download.cancel();
+		}
+	}
+
+	// remote images queued or downloading, local ones finish quickly anyway
+	public static void cancelDownloads() {
+		ArrayList<ImageIngest> ingests;
+		synchronized (sIngests) {
+			ingests = new ArrayList<ImageIngest>(sIngests);
+		}
+		for (ImageIngest ingest : ingests) {
+			if (ingest.mUri != null && !ingest.isContentUri(ingest.mUri)) {
+				ingest.cancel();
+			}
+		}
+	}
+
+	// milliseconds spent in each STAGE_*, 0 for stages not reached
+	public long[] getStageMillis() {
+		return mStageMillis.clone();
+	}
+
+	@Override
+	public void run() {
+		boolean bSucceeded = false;
+		try {
+			bSucceeded = ingest();
+		} catch (Exception e) {
+			Log.e(TAG, "Failed to ingest image", e);
+		} finally {
+			endStage();
+			release();
+			synchronized (sIngests) {
+				sIngests.remove(this);
+			}
+		}
+		if (DEBUG) Log.d(TAG, getStats());
+
+		final boolean result = bSucceeded;
+		mHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				if (!result) {
+					mManager.removeTodo(mItem, null);
+				}
+				if (mListener != null) {
+					mListener.onIngestFinished(mItem.uuid, result);
+				}
+			}
+		});
+	}
+
+	public String getStats() {
+		StringBuilder stats = new StringBuilder(mItem.uuid);
+		long total = 0;
+		for (int i = 0; i < STAGE_NAMES.length; i++) {
+			stats.append(" ").append(STAGE_NAMES[i]).append(":").append(mStageMillis[i]);
+			total += mStageMillis[i];
+		}
+		stats.append(" total:").append(total);
+		if (mDownload != null) {
+			stats.append(" downloaded:").append(mDownload.getBytesRead());
+		}
+		return stats.toString();
+	}
+
+	private boolean ingest() throws Exception {
+		startStage(STAGE_RESOLVE);
+		if (bCancelled || !resolve()) {
+			return false;
+		}
+
+		startStage(STAGE_BOUNDS);
+		BitmapFactory.Options option = new BitmapFactory.Options();
+		option.inJustDecodeBounds = true;
+		float degrees = probe(option);
+		if (option.outWidth <= 0 || option.outHeight <= 0) {
+			return false;
+		}
+
+		startStage(STAGE_DECODE);
+		if (bCancelled) {
+			return false;
+		}
+		BitmapTransform transform = new BitmapTransform()
+				.fit(BitmapHelper.MAX_IMAGE_WIDTH, BitmapHelper.MAX_IMAGE_HEIGHT)
+				.rotate(degrees).pooled(true);
+		option.inJustDecodeBounds = false;
+		option.inSampleSize = transform.getSampleSize(option.outWidth, option.outHeight);
+		option.inPreferredConfig = Config.ARGB_8888;
+		Bitmap src = decode(option);
+		if (src == null) {
+			return false;
+		}
+
+		startStage(STAGE_TRANSFORM);
+		Bitmap bitmap = transform.apply(src);
+		src.recycle();
+
+		startStage(STAGE_POST);
+		if (bCancelled) {
+			BitmapPool.put(bitmap);
+			return false;
+		}
+		// encodes and hashes on this thread, returns once the writer has
+		// inserted the image obj
+		return mManager.setTodoImage(mItem.uuid, bitmap).get();
+	}
+
+	// ----------------------------------------------------------
+	// Source
+	// ----------------------------------------------------------
+	// A file path when there is one, else a seekable descriptor, else a
+	// stream probed and rewound in place. Nothing is copied unless the
+	// stream can't be rewound.
+	private boolean resolve() throws Exception {
+		if (mCaptureFile != null) {
+			mPath = mCaptureFile.getAbsolutePath();
+			return mCaptureFile.length() > 0;
+		}
+
+		ContentResolver cr = mContext.getContentResolver();
+		String[] columns = { MediaColumns.DATA, MediaColumns.DISPLAY_NAME };
+		Cursor c = cr.query(mUri, columns, null, null, null);
+		try {
+			if (c != null && c.moveToFirst()) {
+				if (c.getString(0) != null) {
+					//regular processing for gallery files
+					mPath = c.getString(0);
+					return new File(mPath).length() > 0;
+				}
+			} else if (mUri.toString().startsWith("content://com.android.gallery3d.provider")) {
+				// motorola xoom doesn't work for contentresolver even if the image comes from picasa.
+				// So just adds the condition of startsWith...
+				// See in detail : http://dimitar.me/how-to-get-picasa-images-using-the-image-picker-on-android-devices-running-any-os-version/
+				mUri = Uri.parse(mUri.toString().replace("com.android.gallery3d","com.google.android.gallery3d"));
+			}
+		} finally {
+			if (c != null) {
+				c.close();
+			}
+		}
+
+		if (isContentUri(mUri) && openDescriptor()) {
+			return true;
+		}
+		mStream = new RewindableInputStream(openStream(), PROBE_BYTES);
+		return true;
+	}
+
+	private boolean isContentUri(Uri uri) {
+		return ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+				|| ContentResolver.SCHEME_FILE.equals(uri.getScheme());
+	}
+
+	// false when the provider hands out pipes or no descriptor at all
+	private boolean openDescriptor() {
+		ParcelFileDescriptor pfd = null;
+		try {
+			pfd = mContext.getContentResolver().openFileDescriptor(mUri, "r");
+			if (pfd == null) {
+				return false;
+			}
+			FileInputStream fis = new FileInputStream(pfd.getFileDescriptor());
+			// throws on pipes and sockets
+			fis.getChannel().position(0);
+			mDescriptor = pfd;
+			mDescriptorStream = fis;
+			return true;
+		} catch (IOException e) {
+			if (DEBUG) Log.d(TAG, "no seekable descriptor: " + e.getMessage());
+			closeQuietly(pfd);
+			return false;
+		}
+	}
+
+	private InputStream openStream() throws IOException {
+		if (isContentUri(mUri)) {
+			InputStream is = mContext.getContentResolver().openInputStream(mUri);
+			if (is == null) {
+				throw new FileNotFoundException(mUri.toString());
+			}
+			return is;
+		}
+
+		// http or https, streamed through the decoders and never stored
+		if (mDownload == null) {
+			mDownload = new ImageDownload(new URL(mUri.toString()));
+			// cancel() may have come before there was a download to cancel
+			if (bCancelled) {
+				mDownload.cancel();
+			}
+		}
+		return mDownload.open();
+	}
+
+	// back to the start of the stream for the next pass
+	private void rewind() throws IOException {
+		try {
+			mStream.rewind();
+		} catch (IOException e) {
+			if (mDownload == null) {
+				throw e;
+			}
+			// requested again rather than kept anywhere
+			if (DEBUG) Log.d(TAG, "can't rewind, reopening: " + e.getMessage());
+			closeQuietly(mStream);
+			mStream = new RewindableInputStream(openStream(), PROBE_BYTES);
+		}
+	}
+
+	// bounds into option, EXIF orientation as the result
+	private float probe(BitmapFactory.Options option) throws IOException {
+		if (mStream != null) {
+			try {
+				float degrees = readExifDegrees(mStream);
+				rewind();
+				BitmapFactory.decodeStream(mStream, null, option);
+				rewind();
+				return degrees;
+			} catch (IOException e) {
+				if (mDownload != null) {
+					throw e;
+				}
+				// headers too long for the mark, read it again into a file
+				if (DEBUG) Log.d(TAG, "can't rewind, copying: " + e.getMessage());
+				closeQuietly(mStream);
+				mStream = null;
+				mTmpFile = copyToCacheFile(openStream());
+				mPath = mTmpFile.getAbsolutePath();
+			}
+		}
+
+		if (mDescriptor != null) {
+			FileChannel channel = mDescriptorStream.getChannel();
+			channel.position(0);
+			float degrees = readExifDegrees(new BufferedInputStream(mDescriptorStream, READ_BUFFER_BYTES));
+			channel.position(0);
+			BitmapFactory.decodeFileDescriptor(mDescriptor.getFileDescriptor(), null, option);
+			return degrees;
+		}
+
+		BitmapFactory.decodeFile(mPath, option);
+		return getExifDegrees(mPath);
+	}
+
+	private Bitmap decode(BitmapFactory.Options option) throws IOException {
+		if (mStream != null) {
+			return BitmapFactory.decodeStream(mStream, null, option);
+		}
+		if (mDescriptor != null) {
+			mDescriptorStream.getChannel().position(0);
+			return BitmapFactory.decodeFileDescriptor(mDescriptor.getFileDescriptor(), null, option);
+		}
+		return BitmapFactory.decodeFile(mPath, option);
+	}
+
+	// a file of this ingest only, in the app private cache
+	private File copyToCacheFile(InputStream is) throws IOException {
+		File file = File.createTempFile("ingest", ".img", mContext.getCacheDir());
+		FileOutputStream os = null;
+		try {
+			os = new FileOutputStream(file);
+			FileChannel out = os.getChannel();
+			ReadableByteChannel in = (is instanceof FileInputStream)
+					? ((FileInputStream) is).getChannel() : Channels.newChannel(is);
+			long position = 0;
+			long count;
+			while ((count = out.transferFrom(in, position, COPY_CHUNK_BYTES)) > 0) {
+				position += count;
+			}
+			if (DEBUG) Log.d(TAG, "copied " + position + " bytes to " + file.getName());
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		} finally {
+			closeQuietly(os);
+			closeQuietly(is);
+		}
+		return file;
+	}
+
+	private void release() {
+		closeQuietly(mStream);
+		mStream = null;
+		closeQuietly(mDescriptor);
+		mDescriptor = null;
+		mDescriptorStream = null;
+		if (mTmpFile != null) {
+			mTmpFile.delete();
+			mTmpFile = null;
+		}
+		if (mCaptureFile != null) {
+			mCaptureFile.delete();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// ----------------------------------------------------------
+	// EXIF
+	// ----------------------------------------------------------
+	private static float getExifDegrees(String path) {
+		try {
+			ExifInterface exif = new ExifInterface(path);
+			return toDegrees(exif.getAttributeInt(
+					ExifInterface.TAG_ORIENTATION,
+					ExifInterface.ORIENTATION_NORMAL));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	// Orientation from the APP1 segment of a JPEG stream (ExifInterface
+	// only reads files), 0 when there is none. Reads up to that segment.
+	static float readExifDegrees(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readUnsignedShort() != 0xFFD8) {
+			// not a JPEG
+			return 0;
+		}
+		while (true) {
+			int marker = in.readUnsignedShort();
+			if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+				// start of scan or end of image, no EXIF
+				return 0;
+			}
+			int length = in.readUnsignedShort() - 2;
+			if (length < 0) {
+				return 0;
+			}
+			if (marker != 0xFFE1) {
+				skipFully(in, length);
+				continue;
+			}
+			byte[] segment = new byte[length];
+			in.readFully(segment);
+			if (length >= 6 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i'
+					&& segment[3] == 'f' && segment[4] == 0 && segment[5] == 0) {
+				return toDegrees(getTiffOrientation(segment, 6));
+			}
+			// XMP or another APP1, the EXIF one may follow
+		}
+	}
+
+	private static int getTiffOrientation(byte[] b, int tiff) {
+		if (tiff + 8 > b.length) {
+			return ExifInterface.ORIENTATION_NORMAL;
+		}
+		boolean bLittle = (b[tiff] == 'I' && b[tiff + 1] == 'I');
+		int ifd = tiff + readInt(b, tiff + 4, bLittle);
+		if (ifd < tiff || ifd + 2 > b.length) {
+			return ExifInterface.ORIENTATION_NORMAL;
+		}
+		int count = readShort(b, ifd, bLittle);
+		for (int i = 0; i < count; i++) {
+			int entry = ifd + 2 + i * 12;
+			if (entry + 12 > b.length) {
+				break;
+			}
+			// tag 0x0112, a SHORT stored in the value field
+			if (readShort(b, entry, bLittle) == 0x0112) {
+				return readShort(b, entry + 8, bLittle);
+			}
+		}
+		return ExifInterface.ORIENTATION_NORMAL;
+	}
+
+	private static int readShort(byte[] b, int offset, boolean bLittle) {
+		int b0 = b[offset] & 0xff;
+		int b1 = b[offset + 1] & 0xff;
+		return bLittle ? (b1 << 8) | b0 : (b0 << 8) | b1;
+	}
+
+	private static int readInt(byte[] b, int offset, boolean bLittle) {
+		int hi = readShort(b, offset + (bLittle ? 2 : 0), bLittle);
+		int lo = readShort(b, offset + (bLittle ? 0 : 2), bLittle);
+		return (hi << 16) | lo;
+	}
+
+	private static void skipFully(DataInputStream in, int count) throws IOException {
+		while (count > 0) {
+			int skipped = in.skipBytes(count);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			count -= skipped;
+		}
+	}
+
+	private static float toDegrees(int orientation) {
+		switch (orientation) {
+		case ExifInterface.ORIENTATION_ROTATE_90:
+			return 90;
+		case ExifInterface.ORIENTATION_ROTATE_180:
+			return 180;
+		case ExifInterface.ORIENTATION_ROTATE_270:
+			return 270;
+		default:
+			return 0;
+		}
+	}
+
+	// Buffered from the start up to a limit, rewound there for the next
+	// pass. The decoders mark the stream on their own, those marks are
+	// ignored so ours stays at the start.
+	private static class RewindableInputStream extends BufferedInputStream {
+		public RewindableInputStream(InputStream in, int limit) {
+			super(in, READ_BUFFER_BYTES);
+			super.mark(limit);
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+		}
+
+		public void rewind() throws IOException {
+			super.reset();
+		}
+	}
+
+	private void startStage(int stage) {
+		endStage();
+		mStage = stage;
+		mStageStartMillis = SystemClock.uptimeMillis();
+	}
+
+	private void endStage() {
+		if (mStage >= 0) {
+			mStageMillis[mStage] = SystemClock.uptimeMillis() - mStageStartMillis;
+			if (DEBUG) Log.d(TAG, STAGE_NAMES[mStage] + ": " + mStageMillis[mStage] + "ms");
+			mStage = -1;
+		}
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.widget.ImageView;
+
+/**
+ * Loads thumbnails of one size into ImageViews through ImageCache.
+ * Requests for the same uuid share one load, a view bound to another
+ * uuid drops its request (cancelled once nobody waits for it), and rows
+ * being shown go before prefetches.
+ * Call it from the main thread only, loads run on a worker pool shared by
+ * all loaders. Cached bitmaps bound to a view are acquired in ImageCache
+ * until the view shows something else, so they are not pooled while shown.
+ */
+public class ImageLoader {
+	private static final String TAG = "ImageLoader";
+	private static final Boolean DEBUG = UIUtils.isDebugMode();
+
+	public static final int PRIORITY_VISIBLE = 0;
+	public static final int PRIORITY_PREFETCH = 1;
+
+	public interface Source {
+		// on a worker thread, null when there is no image
+		public Bitmap load(String uuid, int width, int height);
+	}
+
+	private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+	private static final ThreadPoolExecutor sWorkers = new ThreadPoolExecutor(
+			WORKER_COUNT, WORKER_COUNT, 0, TimeUnit.MILLISECONDS,
+			new PriorityBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				private final AtomicInteger mCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, TAG + " #" + mCount.incrementAndGet());
+				}
+			});
+	private static final AtomicInteger sSequence = new AtomicInteger();
+
+	private final Source mSource;
+	private final int mWidth;
+	private final int mHeight;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	// uuid -> load queued or running
+	private final HashMap<String, Request> mRequests = new HashMap<String, Request>();
+	private final WeakHashMap<ImageView, Request> mViewRequests = new WeakHashMap<ImageView, Request>();
+	// cached bitmap each view shows
+	private final WeakHashMap<ImageView, Bitmap> mViewBitmaps = new WeakHashMap<ImageView, Bitmap>();
+	// prefetched into the cache, not bound yet
+	private final HashSet<String> mPrefetched = new HashSet<String>();
+	private int mPrefetchCount = 0;
+	private int mPrefetchLoadedCount = 0;
+	private int mPrefetchHitCount = 0;
+
+	public ImageLoader(Source source, int width, int height) {
+		mSource = source;
+		mWidth = width;
+		mHeight = height;
+	}
+
+	// shows the cached image right away, or the placeholder until it is loaded
+	public void load(String uuid, ImageView imageView) {
+		Bitmap bitmap = ImageCache.getImage(ImageCache.makeKey(uuid, mWidth, mHeight));
+		if (mPrefetched.remove(uuid) && bitmap != null) {
+			mPrefetchHitCount++;
+		}
+		if (bitmap != null) {
+			cancel(imageView);
+			bind(imageView, uuid, bitmap);
+			imageView.setVisibility(View.VISIBLE);
+			return;
+		}
+
+		bind(imageView, uuid, null);
+		Request prevRequest = mViewRequests.get(imageView);
+		if (prevRequest != null && prevRequest.uuid.equals(uuid)) {
+			return;
+		}
+		cancel(imageView);
+
+		Request request = getRequest(uuid, PRIORITY_VISIBLE);
+		request.views.add(imageView);
+		mViewRequests.put(imageView, request);
+	}
+
+	// loads into the cache only, behind every row being shown
+	public void prefetch(String uuid) {
+		if (!mRequests.containsKey(uuid)
+				&& !ImageCache.containsImage(ImageCache.makeKey(uuid, mWidth, mHeight))) {
+			mPrefetchCount++;
+			getRequest(uuid, PRIORITY_PREFETCH);
+		}
+	}
+
+	// the view shows no image anymore
+	public void unbind(ImageView imageView) {
+		cancel(imageView);
+		bind(imageView, null, null);
+	}
+
+	// the view is recycled or shows no image anymore
+	public void cancel(ImageView imageView) {
+		Request request = mViewRequests.remove(imageView);
+		if (request != null) {
+			request.views.remove(imageView);
+			if (request.views.isEmpty() && request.priority == PRIORITY_VISIBLE) {
+				cancelRequest(request);
+			}
+		}
+	}
+
+	// prefetches nobody is waiting for
+	public void cancelPrefetches() {
+		ArrayList<Request> requests = new ArrayList<Request>(mRequests.values());
+		for (Request request : requests) {
+			if (request.views.isEmpty()) {
+				cancelRequest(request);
+			}
+		}
+	}
+
+	// ----------------------------------------------------------
+	// Statistics
+	// ----------------------------------------------------------
+	public int getPrefetchCount() {
+		return mPrefetchCount;
+	}
+
+	public int getPrefetchHitCount() {
+		return mPrefetchHitCount;
+	}
+
+	// share of the prefetched images a row was bound to while still cached
+	public float getPrefetchHitRate() {
+		return (mPrefetchLoadedCount > 0) ? (float) mPrefetchHitCount / mPrefetchLoadedCount : 0;
+	}
+
+	public String getStats() {
+		return "prefetches:" + mPrefetchCount + " loaded:" + mPrefetchLoadedCount
+				+ " hits:" + mPrefetchHitCount + " rate:" + getPrefetchHitRate();
+	}
+
+	private Request getRequest(String uuid, int priority) {
+		Request request = mRequests.get(uuid);
+		if (request == null) {
+			request = new Request(uuid, priority);
+			mRequests.put(uuid, request);
+			sWorkers.execute(request);
+		} else if (priority < request.priority) {
+			// queued again at its new place, unless a worker has it already
+			if (sWorkers.remove(request)) {
+				request.priority = priority;
+				sWorkers.execute(request);
+			} else {
+				request.priority = priority;
+			}
+		}
+		return request;
+	}
+
+	private void cancelRequest(Request request) {
+		request.bCancelled = true;
+		sWorkers.remove(request);
+		mRequests.remove(request.uuid);
+	}
+
+	// back on the main thread
+	private void deliver(Request request, Bitmap bitmap) {
+		if (mRequests.get(request.uuid) == request) {
+			mRequests.remove(request.uuid);
+		}
+		if (request.bCancelled) {
+			return;
+		}
+		if (request.views.isEmpty() && bitmap != null) {
+			mPrefetched.add(request.uuid);
+			mPrefetchLoadedCount++;
+		}
+		for (ImageView imageView : request.views) {
+			if (mViewRequests.get(imageView) == request) {
+				mViewRequests.remove(imageView);
+				bind(imageView, request.uuid, bitmap);
+				imageView.setVisibility(View.VISIBLE);
+			}
+		}
+	}
+
+	// the placeholder when bitmap is null
+	private void bind(ImageView imageView, String uuid, Bitmap bitmap) {
+		Bitmap prevBitmap = (bitmap != null) ? mViewBitmaps.put(imageView, bitmap)
+				: mViewBitmaps.remove(imageView);
+		if (bitmap != null) {
+			if (prevBitmap != bitmap) {
+				ImageCache.acquire(ImageCache.makeKey(uuid, mWidth, mHeight), bitmap);
+			}
+			imageView.setImageBitmap(bitmap);
+		} else {
+			imageView.setImageBitmap(BitmapHelper.getPlaceholderBitmap(mWidth, mHeight));
+		}
+		// released once the view lets go of it
+		if (prevBitmap != null && prevBitmap != bitmap) {
+			ImageCache.release(prevBitmap);
+		}
+	}
+
+	private class Request implements Runnable, Comparable<Request> {
+		public final String uuid;
+		public final int sequence = sSequence.incrementAndGet();
+		public volatile int priority;
+		public volatile boolean bCancelled = false;
+		// touched on the main thread only
+		public final ArrayList<ImageView> views = new ArrayList<ImageView>();
+
+		public Request(String uuid, int priority) {
+			this.uuid = uuid;
+			this.priority = priority;
+		}
+
+		@Override
+		public void run() {
+			if (bCancelled) {
+				return;
+			}
+			Bitmap bitmap = null;
+			try {
+				bitmap = mSource.load(uuid, mWidth, mHeight);
+				if (bitmap != null) {
+					ImageCache.setImage(ImageCache.makeKey(uuid, mWidth, mHeight), bitmap);
+				}
+			} catch (Exception e) {
+				Log.e(TAG, "Failed to load image", e);
+			}
+			if (DEBUG) Log.d(TAG, "loaded:" + uuid + " priority:" + priority + " found:" + (bitmap != null));
+
+			final Bitmap result = bitmap;
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					deliver(Request.this, result);
+				}
+			});
+		}
+
+		// higher priority first, then in the order asked for
+		@Override
+		public int compareTo(Request another) {
+			if (priority != another.priority) {
+				return (priority < another.priority) ? -1 : 1;
+			}
+			return (sequence < another.sequence) ? -1 : (sequence > another.sequence ? 1 : 0);
+		}
+	}
+}
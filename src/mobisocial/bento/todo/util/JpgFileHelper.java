@@ -69,6 +69,15 @@ public class JpgFileHelper {
 		return new File(tmpImageFile);
 	}
 	
+	// a file of its own for each shot, written by the camera app
+	public static File createCaptureFile() throws IOException {
+		File fileDirectory = new File(extStorageDirectory);
+		if (!fileDirectory.exists()) {
+			fileDirectory.mkdir();
+		}
+		return File.createTempFile("capture", ".jpg", fileDirectory);
+	}
+	
 	public static File saveTmpFile(InputStream is) throws Exception {
 		File file = getTmpFile();
 		OutputStream os = new FileOutputStream(file);
@@ -39,6 +39,10 @@ public class UIUtils {
         return Build.VERSION.SDK_INT >= Build.VERSION_CODES.FROYO;
     }
 
+    public static boolean isEclair() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ECLAIR;
+    }
+
     public static boolean isTablet(Context context) {
         return (context.getResources().getConfiguration().screenLayout
                 & Configuration.SCREENLAYOUT_SIZE_MASK)
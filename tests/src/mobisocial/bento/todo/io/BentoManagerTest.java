@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.ui.TodoListItem;
+import mobisocial.socialkit.Obj;
+import android.net.Uri;
+
+/**
+ * BentoManager driven through its public calls, Musubi replaced by a
+ * recording manager : inserted bentos get a uri of their own and posted
+ * objs are kept with the uri they went to.
+ * 
+ * The contention tests run readers on the manager getters while a writer
+ * thread updates, removes, adds and moves todos, and an image thread holds
+ * the manager lock a while at a time as a decode under it would. Readers
+ * must always see a whole version and must not wait for the lock. Reads,
+ * and how many of them waited, with and without readers taking the lock,
+ * are printed.
+ */
+public class BentoManagerTest extends TestCase {
+	private static final long TIMEOUT_SECONDS = 10;
+	private static final int TODOS = 200;
+	private static final int READERS = 4;
+	private static final int WRITES = 200;
+	private static final long IMAGE_HOLD_MILLIS = 2;
+	// a read taking longer waited for the lock
+	private static final long BLOCKED_READ_NANOS = IMAGE_HOLD_MILLIS * 1000000 / 2;
+
+	private RecordingManager mManager;
+
+	@Override
+	protected void setUp() throws Exception {
+		mManager = new RecordingManager();
+		// every update seals its batch right away
+		mManager.setCoalesceWindow(0);
+	}
+
+	// A batch sealed while the new bento is still being inserted goes to
+	// the new bento once it has a uri, never to the previous one.
+	public void testBatchSealedRightAfterCreateBento() throws Exception {
+		assertTrue(mManager.createBento(newBento("bento-a"), null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertEquals(Uri.parse("content://test/bento-a"), mManager.mObserved.get(0));
+
+		mManager.mInsertGate = new CountDownLatch(1);
+		Future<Boolean> created = mManager.createBento(newBento("bento-b"), null);
+		Future<Boolean> added = mManager.addTodo(BentoSnapshotTest.newItem("todo-b", "1", 0), null, null);
+		// detached from the previous bento before anything else is posted
+		assertEquals(0, mManager.mObserved.size());
+		mManager.mInsertGate.countDown();
+
+		assertTrue(created.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		assertTrue(added.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		Uri uriB = Uri.parse("content://test/bento-b");
+		assertEquals(1, mManager.mPosted.size());
+		Posted posted = mManager.mPosted.get(0);
+		assertEquals(uriB, posted.uri);
+		assertEquals("bento-b", posted.obj.getJson().getJSONObject(BentoJson.DELTA)
+				.getString(BentoJson.DELTA_BENTO_UUID));
+		assertEquals(1, mManager.mObserved.size());
+		assertEquals(uriB, mManager.mObserved.get(0));
+	}
+
+	// A checkpoint holds the state its batch was sealed with, not ops
+	// applied while it waited for the writer.
+	public void testCheckpointOfSealedBatch() throws Exception {
+		assertTrue(mManager.createBento(newBento("bento"), null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		mManager.mPostGate = new CountDownLatch(1);
+		for (int i = 0; i < BentoManager.SNAPSHOT_INTERVAL_UPDATES; i++) {
+			mManager.updateTodo(retitled("todo-0", "sealed " + i), null);
+		}
+		Future<Boolean> next = mManager.updateTodo(retitled("todo-1", "next"), null);
+		mManager.mPostGate.countDown();
+		assertTrue(next.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		assertEquals(BentoManager.SNAPSHOT_INTERVAL_UPDATES + 1, mManager.mPosted.size());
+		Obj checkpoint = mManager.mPosted.get(BentoManager.SNAPSHOT_INTERVAL_UPDATES - 1).obj;
+		assertEquals(BentoManager.SNAPSHOT_KEY, checkpoint.getStringKey());
+		String state = new String(checkpoint.getRaw(), "UTF-8");
+		assertTrue(state, state.contains("sealed " + (BentoManager.SNAPSHOT_INTERVAL_UPDATES - 1)));
+		assertFalse(state, state.contains("next"));
+		assertNull(mManager.mPosted.get(BentoManager.SNAPSHOT_INTERVAL_UPDATES).obj.getRaw());
+	}
+
+	public void testReadsStayConsistent() throws Exception {
+		long[] counts = runContention(false);
+		System.out.println("BentoManagerTest snapshot reads:" + counts[0] + " blocked:" + counts[1]);
+	}
+
+	// the same load with readers taking the manager lock, as before snapshots
+	public void testLockedReadsForComparison() throws Exception {
+		long[] counts = runContention(true);
+		System.out.println("BentoManagerTest locked reads:" + counts[0] + " blocked:" + counts[1]);
+	}
+
+	// -----
+
+	// reads done by all readers while the writer runs, and the blocked ones
+	private long[] runContention(final boolean bLockedReads) throws Exception {
+		Bento created = BentoTest.newBento(TODOS);
+		assertTrue(mManager.createBento(created, null).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicBoolean bDone = new AtomicBoolean(false);
+		final AtomicLong reads = new AtomicLong();
+		final AtomicLong blockedReads = new AtomicLong();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread[] readers = new Thread[READERS];
+		for (int i = 0; i < READERS; i++) {
+			readers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					await(start);
+					long count = 0;
+					long blocked = 0;
+					while (!bDone.get() && failure.get() == null) {
+						long readStart = System.nanoTime();
+						if (bLockedReads) {
+							synchronized (mManager) {
+								read(mManager, failure);
+							}
+						} else {
+							read(mManager, failure);
+						}
+						if (System.nanoTime() - readStart > BLOCKED_READ_NANOS) {
+							blocked++;
+						}
+						count++;
+					}
+					reads.addAndGet(count);
+					blockedReads.addAndGet(blocked);
+				}
+			});
+			readers[i].start();
+		}
+
+		Thread image = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				await(start);
+				while (!bDone.get()) {
+					synchronized (mManager) {
+						hold(IMAGE_HOLD_MILLIS);
+					}
+					// lets the writer in between
+					hold(1);
+				}
+			}
+		});
+		image.start();
+
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				await(start);
+				try {
+					for (int i = 0; i < WRITES; i++) {
+						// the last half is never removed
+						String uuid = "todo-" + (i % (TODOS / 2));
+						TodoListItem item = new TodoListItem(mManager.getTodoListItem(uuid));
+						item.title = "title " + i;
+						item.modDateMillis = i;
+						mManager.updateTodo(item, null);
+						// one removed and added again, the list changes length
+						mManager.removeTodo(item, null);
+						mManager.addTodo(new TodoListItem(item), null, null);
+						mManager.sortTodoList(0, i % TODOS);
+					}
+				} catch (RuntimeException e) {
+					failure.compareAndSet(null, "writer " + e);
+				} finally {
+					bDone.set(true);
+				}
+			}
+		});
+		writer.start();
+
+		start.countDown();
+		writer.join();
+		image.join();
+		for (Thread reader : readers) {
+			reader.join();
+		}
+
+		assertNull(failure.get(), failure.get());
+		assertEquals(TODOS, mManager.getTodoListCount());
+		return new long[] { reads.get(), blockedReads.get() };
+	}
+
+	// what a list adapter reads : count and items one by one, then the
+	// snapshot a caller holds when several reads have to agree
+	private static void read(BentoManager manager, AtomicReference<String> failure) {
+		int count = manager.getTodoListCount();
+		// TODOS - 1 between a remove and the add after it
+		if (count < TODOS - 1 || count > TODOS) {
+			failure.compareAndSet(null, "count " + count);
+			return;
+		}
+		for (int i = 0; i < TODOS - 1; i += 20) {
+			TodoListItem item = manager.getTodoListItem(i);
+			if (item == null || item.title == null) {
+				failure.compareAndSet(null, "item at " + i);
+				return;
+			}
+		}
+		if (manager.getTodoListItem("todo-" + (TODOS - 1)) == null) {
+			failure.compareAndSet(null, "todo-" + (TODOS - 1));
+			return;
+		}
+
+		// a whole version : positions and order agree
+		Bento bento = manager.getBentoListItem().bento;
+		for (int i = 0; i < bento.todoList.size(); i++) {
+			TodoListItem item = bento.todoList.get(i);
+			if (bento.indexOf(item.uuid) != i) {
+				failure.compareAndSet(null, "position of " + item.uuid + " != " + i);
+				return;
+			}
+			if (i > 0 && Bento.compareOrder(bento.todoList.get(i - 1), item) >= 0) {
+				failure.compareAndSet(null, "order at " + i);
+				return;
+			}
+		}
+	}
+
+	private static void hold(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private TodoListItem retitled(String uuid, String title) {
+		TodoListItem item = new TodoListItem(mManager.getTodoListItem(uuid));
+		item.title = title;
+		return item;
+	}
+
+	static Bento newBento(String uuid) {
+		Bento bento = BentoTest.newBento(3);
+		bento.uuid = uuid;
+		return bento;
+	}
+
+	static class Posted {
+		final Uri uri;
+		final Obj obj;
+
+		Posted(Uri uri, Obj obj) {
+			this.uri = uri;
+			this.obj = obj;
+		}
+	}
+
+	// Musubi calls recorded instead of made, from the writer thread
+	static class RecordingManager extends BentoManager {
+		final ArrayList<Posted> mPosted = new ArrayList<Posted>();
+		final ArrayList<Uri> mObserved = new ArrayList<Uri>();
+		// hold bento inserts and posts until released
+		volatile CountDownLatch mInsertGate = null;
+		volatile CountDownLatch mPostGate = null;
+
+		@Override
+		Uri insertBentoObj(Obj obj) {
+			pass(mInsertGate);
+			try {
+				String uuid = obj.getJson().getJSONObject(BentoJson.STATE)
+						.getJSONObject(BentoJson.BENTO).getString(BentoJson.BENTO_UUID);
+				return Uri.parse("content://test/" + uuid);
+			} catch (Exception e) {
+				throw new IllegalStateException(e.toString());
+			}
+		}
+
+		@Override
+		void postStateObj(Uri objUri, Obj obj, boolean bImage) {
+			pass(mPostGate);
+			synchronized (mPosted) {
+				mPosted.add(new Posted(objUri, obj));
+			}
+		}
+
+		@Override
+		synchronized void registerStateObserver(Uri objUri) {
+			mObserved.add(objUri);
+		}
+
+		@Override
+		synchronized void unregisterStateObserver(Uri objUri) {
+			mObserved.remove(objUri);
+		}
+
+		private static void pass(CountDownLatch gate) {
+			if (gate != null) {
+				try {
+					gate.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
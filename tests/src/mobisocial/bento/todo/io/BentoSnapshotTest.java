@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.ui.TodoListItem;
+
+/**
+ * A published Bento stays as it is while its copy is edited. Readers and
+ * writers going at BentoManager together are in BentoManagerTest.
+ */
+public class BentoSnapshotTest extends TestCase {
+	private static final int TODOS = 200;
+
+	private Bento mBento;
+
+	@Override
+	protected void setUp() {
+		Bento bento = new Bento();
+		bento.uuid = "bento";
+		String[] ranks = RankKey.sequence(TODOS);
+		for (int i = 0; i < TODOS; i++) {
+			bento.todoList.add(newItem("todo-" + i, ranks[i], 0));
+		}
+		bento.numberOfTodo = TODOS;
+		mBento = bento;
+	}
+
+	public void testPublishedVersionIsNeverChanged() {
+		Bento published = mBento;
+		TodoListItem first = published.todoList.get(0);
+		String title = first.title;
+
+		Bento bento = new Bento(published);
+		TodoListItem item = new TodoListItem(first);
+		item.title = "changed";
+		BentoOperation.update(item).apply(bento);
+		BentoOperation.remove("todo-1").apply(bento);
+
+		assertEquals(TODOS, published.todoList.size());
+		assertSame(first, published.todoList.get(0));
+		assertEquals(title, published.todoList.get(0).title);
+		assertEquals(1, published.indexOf("todo-1"));
+		assertEquals("changed", bento.getTodo(first.uuid).title);
+		assertEquals(-1, bento.indexOf("todo-1"));
+	}
+
+	static TodoListItem newItem(String uuid, String rank, long modDateMillis) {
+		TodoListItem item = new TodoListItem();
+		item.uuid = uuid;
+		item.title = uuid;
+		item.description = "";
+		item.bDone = false;
+		item.creContactId = "";
+		item.modContactId = "";
+		item.rank = rank;
+		item.modDateMillis = modDateMillis;
+		return item;
+	}
+}
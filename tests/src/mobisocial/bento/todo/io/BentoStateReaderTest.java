@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.ui.TodoListItem;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Decoding of appstate json as the bento list loads it, and a benchmark of
+ * the decoding half of a list load against the org.json way it replaced.
+ * The query half needs the Musubi provider and is not covered here.
+ */
+public class BentoStateReaderTest extends TestCase {
+	private static final int BENCHMARK_BENTOS = 200;
+	private static final int BENCHMARK_TODOS = 40;
+	private static final int BENCHMARK_DELTAS = 20;
+
+	public void testPeekRoot() {
+		assertEquals(BentoStateReader.ROOT_STATE, BentoStateReader.peekRoot(
+				"{\"render\":\"latest\",\"state\":{}}"));
+		assertEquals(BentoStateReader.ROOT_DELTA, BentoStateReader.peekRoot(
+				"{\"b64jpgthumb\":\"{[\\\"\",\"delta\":{}}"));
+		assertEquals(BentoStateReader.ROOT_NONE, BentoStateReader.peekRoot("{\"text\":\"hi\"}"));
+		assertEquals(BentoStateReader.ROOT_NONE, BentoStateReader.peekRoot("not json"));
+	}
+
+	public void testHeaderOnlyCounts() throws Exception {
+		String json = stateJson(BentoTest.newBento(25));
+
+		Bento header = new Bento();
+		assertTrue(BentoStateReader.readState(json, header, true));
+		assertEquals("bento", header.uuid);
+		assertEquals(25, header.numberOfTodo);
+		assertEquals(0, header.todoList.size());
+
+		Bento full = new Bento();
+		assertTrue(BentoStateReader.readState(json, full, false));
+		assertEquals(25, full.numberOfTodo);
+		assertEquals(25, full.todoList.size());
+		assertEquals("todo-24", full.todoList.get(24).uuid);
+	}
+
+	public void testMissingStateFails() {
+		assertFalse(BentoStateReader.readState("{\"delta\":{}}", new Bento(), true));
+		assertFalse(BentoStateReader.readState("{\"state\":{\"todo_list\":[]}}", new Bento(), true));
+		assertFalse(BentoStateReader.readState("{\"state\":", new Bento(), true));
+	}
+
+	public void testReadDelta() throws Exception {
+		Bento bento = BentoTest.newBento(5);
+		ArrayList<BentoOperation> ops = new ArrayList<BentoOperation>();
+		assertEquals("bento", BentoStateReader.readDelta(deltaJson(bento, 3), ops));
+		assertEquals(4, ops.size());
+		for (BentoOperation op : ops) {
+			op.apply(bento);
+		}
+		assertEquals("title 3", bento.getTodo("todo-0").title);
+		assertTrue(bento.getTodo("todo-0").bDone);
+		assertEquals(-1, bento.indexOf("todo-1"));
+		assertEquals(0, bento.indexOf("added-3"));
+		assertEquals(bento.todoList.size() - 1, bento.indexOf("todo-2"));
+
+		// ops without a type or a uuid are dropped, the others kept
+		ops.clear();
+		assertEquals("b", BentoStateReader.readDelta(
+				"{\"delta\":{\"bento_uuid\":\"b\",\"ops\":[{\"op\":\"remove\"},{\"op\":\"remove\",\"uuid\":\"x\"},3]}}", ops));
+		assertEquals(1, ops.size());
+		assertEquals("x", ops.get(0).uuid);
+	}
+
+	// Decoding for a list of 200 bentos, each a checkpoint of 40 todos and
+	// 20 deltas after it : header only when nothing follows the base, else
+	// the state plus the replayed deltas, against org.json trees of both.
+	public void testListLoadBenchmark() throws Exception {
+		String[] states = new String[BENCHMARK_BENTOS];
+		String[][] deltas = new String[BENCHMARK_BENTOS][];
+		for (int i = 0; i < BENCHMARK_BENTOS; i++) {
+			Bento bento = BentoTest.newBento(BENCHMARK_TODOS);
+			states[i] = stateJson(bento);
+			// every other bento has deltas after its checkpoint
+			deltas[i] = new String[(i % 2 == 0) ? BENCHMARK_DELTAS : 0];
+			ArrayList<BentoOperation> ops = new ArrayList<BentoOperation>();
+			for (int j = 0; j < deltas[i].length; j++) {
+				deltas[i][j] = deltaJson(bento, j);
+				// the next delta follows this one
+				ops.clear();
+				BentoStateReader.readDelta(deltas[i][j], ops);
+				for (BentoOperation op : ops) {
+					op.apply(bento);
+				}
+			}
+		}
+
+		// warm up
+		int count = loadStreaming(states, deltas) + loadTrees(states, deltas);
+
+		long start = System.nanoTime();
+		int streamingCount = loadStreaming(states, deltas);
+		long streamingNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int treeCount = loadTrees(states, deltas);
+		long treeNanos = System.nanoTime() - start;
+
+		assertEquals(treeCount, streamingCount);
+		assertTrue(count > 0);
+		System.out.println("BentoStateReaderTest bentos:" + BENCHMARK_BENTOS
+				+ " streaming ms:" + streamingNanos / 1000000.0
+				+ " org.json ms:" + treeNanos / 1000000.0);
+	}
+
+	// what loadBentoList decodes now (fetchLatestBento)
+	private static int loadStreaming(String[] states, String[][] deltas) {
+		int count = 0;
+		ArrayList<BentoOperation> ops = new ArrayList<BentoOperation>();
+		for (int i = 0; i < states.length; i++) {
+			Bento bento = new Bento();
+			boolean bCountOnly = (deltas[i].length == 0);
+			assertTrue(BentoStateReader.readState(states[i], bento, bCountOnly));
+			if (!bCountOnly) {
+				for (String json : deltas[i]) {
+					ops.clear();
+					BentoStateReader.readDelta(json, ops);
+					for (BentoOperation op : ops) {
+						op.apply(bento);
+					}
+				}
+				bento.numberOfTodo = bento.todoList.size();
+			}
+			count += bento.numberOfTodo;
+		}
+		return count;
+	}
+
+	// the same through org.json trees, as the list was loaded before
+	private static int loadTrees(String[] states, String[][] deltas) throws Exception {
+		int count = 0;
+		for (int i = 0; i < states.length; i++) {
+			JSONObject stateObj = new JSONObject(states[i]).getJSONObject(BentoJson.STATE);
+			JSONArray todoList = stateObj.getJSONArray(BentoJson.TODO_LIST);
+			int todos = todoList.length();
+			for (String json : deltas[i]) {
+				JSONArray opsArray = new JSONObject(json).getJSONObject(BentoJson.DELTA)
+						.getJSONArray(BentoJson.DELTA_OPS);
+				for (int j = 0; j < opsArray.length(); j++) {
+					String type = opsArray.getJSONObject(j).getString(BentoJson.OP_TYPE);
+					if (BentoOperation.TYPE_ADD.equals(type)) {
+						todos++;
+					} else if (BentoOperation.TYPE_REMOVE.equals(type)) {
+						todos--;
+					}
+				}
+			}
+			count += todos;
+		}
+		return count;
+	}
+
+	private static String stateJson(Bento bento) throws Exception {
+		return new String(new BentoStateWriter().write(bento, 7).toByteArray(), "UTF-8");
+	}
+
+	// an update, a remove, an add at the top and a move to the bottom
+	private static String deltaJson(Bento bento, int n) throws Exception {
+		JSONArray opsArray = new JSONArray();
+
+		TodoListItem item = new TodoListItem(bento.todoList.get(0));
+		item.title = "title " + n;
+		item.bDone = true;
+		item.modDateMillis = n + 1;
+		opsArray.put(BentoOperation.update(item).toJson());
+
+		opsArray.put(BentoOperation.remove(bento.todoList.get(1).uuid).toJson());
+
+		JSONObject todoObj = new JSONObject();
+		todoObj.put(BentoJson.TODO_UUID, "added-" + n);
+		todoObj.put(BentoJson.TODO_TITLE, "added " + n);
+		todoObj.put(BentoJson.TODO_RANK, RankKey.between(null, bento.todoList.get(0).rank));
+		JSONObject addObj = new JSONObject();
+		addObj.put(BentoJson.OP_TYPE, BentoOperation.TYPE_ADD);
+		addObj.put(BentoJson.OP_UUID, "added-" + n);
+		addObj.put(BentoJson.OP_TODO, todoObj);
+		opsArray.put(addObj);
+
+		TodoListItem moved = new TodoListItem(bento.todoList.get(2));
+		moved.rank = RankKey.between(bento.todoList.get(bento.todoList.size() - 1).rank, null);
+		moved.rankDateMillis = n + 1;
+		opsArray.put(BentoOperation.move(moved).toJson());
+
+		JSONObject deltaObj = new JSONObject();
+		deltaObj.put(BentoJson.DELTA_BENTO_UUID, bento.uuid);
+		deltaObj.put(BentoJson.DELTA_OPS, opsArray);
+		return new JSONObject().put(BentoJson.DELTA, deltaObj).toString();
+	}
+}
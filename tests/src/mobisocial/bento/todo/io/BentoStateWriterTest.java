@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.io.UnsupportedEncodingException;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.ui.TodoListItem;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * BentoStateWriter output read back by BentoStateReader and by org.json,
+ * which fetchTodoListObj still uses.
+ */
+public class BentoStateWriterTest extends TestCase {
+	// every escape, a control character, 2, 3 and 4 byte UTF-8
+	private static final String TRICKY = "q\" b\\ s/ t\t n\n r\r b\b f\f c\u0001 \u00e9 \u3042 \ud83d\ude00";
+
+	public void testRoundTrip() throws Exception {
+		Bento bento = newBento();
+		String json = write(new BentoStateWriter(), bento);
+
+		Bento read = new Bento();
+		assertTrue(BentoStateReader.readState(json, read, false));
+		assertBento(bento, read);
+	}
+
+	public void testValidJson() throws Exception {
+		Bento bento = newBento();
+		JSONObject stateObj = new JSONObject(write(new BentoStateWriter(), bento))
+				.getJSONObject(BentoJson.STATE);
+		assertEquals(7, stateObj.getInt(BentoJson.VERSION_CODE));
+
+		JSONObject bentoObj = stateObj.getJSONObject(BentoJson.BENTO);
+		assertEquals(bento.uuid, bentoObj.getString(BentoJson.BENTO_UUID));
+		assertEquals(bento.name, bentoObj.getString(BentoJson.BENTO_NAME));
+
+		JSONArray todoList = stateObj.getJSONArray(BentoJson.TODO_LIST);
+		assertEquals(bento.todoList.size(), todoList.length());
+		for (int i = 0; i < todoList.length(); i++) {
+			TodoListItem item = bento.todoList.get(i);
+			JSONObject todoObj = todoList.getJSONObject(i);
+			assertEquals(item.uuid, todoObj.getString(BentoJson.TODO_UUID));
+			assertEquals(item.title, todoObj.getString(BentoJson.TODO_TITLE));
+			assertEquals(item.hasImage, todoObj.getBoolean(BentoJson.TODO_HAS_IMG));
+			assertEquals(item.creDateMillis, todoObj.getLong(BentoJson.TODO_CRE_DATE));
+			assertEquals(item.modDateMillis, todoObj.getLong(BentoJson.TODO_MOD_DATE));
+			// null values are left out, as JSONObject.put() does
+			assertEquals(item.imageHash != null, todoObj.has(BentoJson.TODO_IMAGE_HASH));
+			assertEquals(item.rankDateMillis != 0, todoObj.has(BentoJson.TODO_RANK_DATE));
+		}
+	}
+
+	// the buffer is reused : a shorter state keeps nothing of a longer one
+	public void testReuse() throws Exception {
+		BentoStateWriter writer = new BentoStateWriter();
+		Bento large = BentoTest.newBento(2000);
+		String largeJson = write(writer, large);
+		// past the initial capacity
+		assertTrue(largeJson.length() > 16 * 1024);
+
+		Bento small = newBento();
+		String smallJson = write(writer, small);
+		assertEquals(write(new BentoStateWriter(), small), smallJson);
+
+		Bento read = new Bento();
+		assertTrue(BentoStateReader.readState(largeJson, read, false));
+		assertEquals(2000, read.todoList.size());
+	}
+
+	private static String write(BentoStateWriter writer, Bento bento) throws UnsupportedEncodingException {
+		byte[] raw = writer.write(bento, 7).toByteArray();
+		assertEquals(raw.length, writer.size());
+		return new String(raw, "UTF-8");
+	}
+
+	private static Bento newBento() {
+		Bento bento = new Bento();
+		bento.uuid = "bento-uuid";
+		bento.name = "name " + TRICKY;
+		bento.creContactId = "contact";
+
+		TodoListItem item = BentoSnapshotTest.newItem("todo-1", "V", 1343000000000L);
+		item.title = TRICKY;
+		item.description = "line 1\nline 2";
+		item.hasImage = true;
+		item.imageHash = "0123456789abcdef0123456789abcdef01234567";
+		item.bDone = true;
+		item.creDateMillis = -1;
+		item.rankDateMillis = Long.MAX_VALUE;
+		bento.todoList.add(item);
+
+		item = BentoSnapshotTest.newItem("todo-2", "W", 0);
+		item.creDateMillis = Long.MIN_VALUE;
+		bento.todoList.add(item);
+		return bento;
+	}
+
+	private static void assertBento(Bento expected, Bento actual) {
+		assertEquals(expected.uuid, actual.uuid);
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.creContactId, actual.creContactId);
+		assertEquals(expected.todoList.size(), actual.numberOfTodo);
+		assertEquals(expected.todoList.size(), actual.todoList.size());
+		for (int i = 0; i < expected.todoList.size(); i++) {
+			TodoListItem item = expected.todoList.get(i);
+			TodoListItem readItem = actual.todoList.get(i);
+			assertEquals(item.uuid, readItem.uuid);
+			assertEquals(item.title, readItem.title);
+			assertEquals(item.description, readItem.description);
+			assertEquals(item.hasImage, readItem.hasImage);
+			assertEquals(item.imageHash, readItem.imageHash);
+			assertEquals(item.bDone, readItem.bDone);
+			assertEquals(item.creDateMillis, readItem.creDateMillis);
+			assertEquals(item.modDateMillis, readItem.modDateMillis);
+			assertEquals(item.creContactId, readItem.creContactId);
+			assertEquals(item.modContactId, readItem.modContactId);
+			assertEquals(item.rank, readItem.rank);
+			assertEquals(item.rankDateMillis, readItem.rankDateMillis);
+		}
+	}
+}
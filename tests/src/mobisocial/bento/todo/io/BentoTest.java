@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.ui.TodoListItem;
+
+/**
+ * The uuid -> position index of Bento, and a lookup benchmark over 10k
+ * todos against the linear scan it replaced.
+ */
+public class BentoTest extends TestCase {
+	private static final int BENCHMARK_TODOS = 10000;
+	private static final int BENCHMARK_LOOKUPS = 10000;
+
+	public void testIndexOf() {
+		Bento bento = newBento(5);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(i, bento.indexOf("todo-" + i));
+		}
+		assertEquals(-1, bento.indexOf("missing"));
+		assertNull(bento.getTodo("missing"));
+		assertSame(bento.todoList.get(3), bento.getTodo("todo-3"));
+	}
+
+	public void testPositionsFollowInvalidate() {
+		Bento bento = newBento(5);
+		assertEquals(4, bento.indexOf("todo-4"));
+
+		bento.todoList.remove(0);
+		bento.invalidatePositions();
+		assertEquals(-1, bento.indexOf("todo-0"));
+		assertEquals(3, bento.indexOf("todo-4"));
+
+		TodoListItem item = BentoSnapshotTest.newItem("todo-new", null, 0);
+		bento.todoList.add(0, item);
+		bento.invalidatePositions();
+		assertEquals(0, bento.indexOf("todo-new"));
+		assertEquals(4, bento.indexOf("todo-4"));
+	}
+
+	public void testCopyKeepsSourcePositions() {
+		Bento published = newBento(5);
+		assertEquals(2, published.indexOf("todo-2"));
+
+		// the copy shares the built index until its order changes
+		Bento bento = new Bento(published);
+		assertEquals(2, bento.indexOf("todo-2"));
+		bento.todoList.remove(0);
+		bento.invalidatePositions();
+		assertEquals(1, bento.indexOf("todo-2"));
+
+		assertEquals(2, published.indexOf("todo-2"));
+		assertEquals(0, published.indexOf("todo-0"));
+	}
+
+	public void testReplacingItemKeepsPositions() {
+		Bento bento = newBento(3);
+		assertEquals(1, bento.indexOf("todo-1"));
+		TodoListItem item = new TodoListItem(bento.todoList.get(1));
+		item.title = "changed";
+		bento.todoList.set(1, item);
+		assertSame(item, bento.getTodo("todo-1"));
+	}
+
+	public void testOperationsKeepIndexCurrent() {
+		Bento bento = newBento(10);
+		BentoOperation.remove("todo-3").apply(bento);
+		assertEquals(-1, bento.indexOf("todo-3"));
+		assertEquals(3, bento.indexOf("todo-4"));
+
+		TodoListItem item = BentoSnapshotTest.newItem("todo-top", bento.rankAt(0), 0);
+		BentoOperation.add(item, null).apply(bento);
+		assertEquals(0, bento.indexOf("todo-top"));
+		assertEquals(4, bento.indexOf("todo-4"));
+
+		TodoListItem moved = new TodoListItem(bento.getTodo("todo-top"));
+		moved.rank = bento.rankAt(bento.todoList.size());
+		moved.rankDateMillis = 1;
+		BentoOperation.move(moved).apply(bento);
+		assertEquals(bento.todoList.size() - 1, bento.indexOf("todo-top"));
+		assertEquals(3, bento.indexOf("todo-4"));
+	}
+
+	// 10k lookups over 10k todos : indexed, linear scan, and a copy-on-write
+	// update including the copy
+	public void testLookupBenchmark() {
+		Bento bento = newBento(BENCHMARK_TODOS);
+		String[] uuids = new String[BENCHMARK_LOOKUPS];
+		for (int i = 0; i < BENCHMARK_LOOKUPS; i++) {
+			uuids[i] = "todo-" + ((i * 7919) % BENCHMARK_TODOS);
+		}
+		// warm up, builds the index too
+		int found = lookupIndexed(bento, uuids) + lookupLinear(bento, uuids);
+
+		long start = System.nanoTime();
+		found += lookupIndexed(bento, uuids);
+		long indexedNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		found += lookupLinear(bento, uuids);
+		long linearNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		Bento published = bento;
+		for (int i = 0; i < 100; i++) {
+			Bento copy = new Bento(published);
+			TodoListItem item = new TodoListItem(copy.getTodo(uuids[i]));
+			item.title = "title " + i;
+			BentoOperation.update(item).apply(copy);
+			published = copy;
+		}
+		long updateNanos = (System.nanoTime() - start) / 100;
+
+		assertEquals(BENCHMARK_LOOKUPS * 4, found);
+		System.out.println("BentoTest lookups:" + BENCHMARK_LOOKUPS + " todos:" + BENCHMARK_TODOS
+				+ " indexed us/lookup:" + (indexedNanos / (double) BENCHMARK_LOOKUPS / 1000)
+				+ " linear us/lookup:" + (linearNanos / (double) BENCHMARK_LOOKUPS / 1000)
+				+ " copy+update us:" + (updateNanos / 1000.0));
+		assertTrue("indexed lookups slower than a scan", indexedNanos < linearNanos);
+	}
+
+	private static int lookupIndexed(Bento bento, String[] uuids) {
+		int found = 0;
+		for (String uuid : uuids) {
+			if (bento.indexOf(uuid) >= 0) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	// what getTodoListItem did before the index
+	private static int lookupLinear(Bento bento, String[] uuids) {
+		int found = 0;
+		for (String uuid : uuids) {
+			for (int i = 0; i < bento.todoList.size(); i++) {
+				if (bento.todoList.get(i).uuid.equals(uuid)) {
+					found++;
+					break;
+				}
+			}
+		}
+		return found;
+	}
+
+	static Bento newBento(int count) {
+		Bento bento = new Bento();
+		bento.uuid = "bento";
+		String[] ranks = RankKey.sequence(count);
+		for (int i = 0; i < count; i++) {
+			bento.todoList.add(BentoSnapshotTest.newItem("todo-" + i, ranks[i], 0));
+		}
+		bento.numberOfTodo = count;
+		return bento;
+	}
+}
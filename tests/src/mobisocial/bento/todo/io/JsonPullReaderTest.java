@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import junit.framework.TestCase;
+
+public class JsonPullReaderTest extends TestCase {
+
+	public void testTokens() {
+		JsonPullReader reader = new JsonPullReader(
+				" { \"s\" : \"v\", \"n\": -12, \"d\":1.5e3, \"t\":true, \"f\":false, \"z\":null, \"a\":[1, {}] } ");
+		assertEquals(JsonPullReader.BEGIN_OBJECT, reader.peek());
+		reader.beginObject();
+
+		assertEquals("s", reader.nextName());
+		assertEquals(JsonPullReader.STRING, reader.peek());
+		assertEquals("v", reader.nextString());
+
+		assertEquals("n", reader.nextName());
+		assertEquals(JsonPullReader.NUMBER, reader.peek());
+		assertEquals(-12, reader.nextLong());
+
+		assertEquals("d", reader.nextName());
+		assertEquals(1500, reader.nextLong());
+
+		assertEquals("t", reader.nextName());
+		assertEquals(JsonPullReader.BOOLEAN, reader.peek());
+		assertTrue(reader.nextBoolean());
+		assertEquals("f", reader.nextName());
+		assertFalse(reader.nextBoolean());
+
+		assertEquals("z", reader.nextName());
+		assertEquals(JsonPullReader.NULL, reader.peek());
+		assertNull(reader.nextString());
+
+		assertEquals("a", reader.nextName());
+		assertEquals(JsonPullReader.BEGIN_ARRAY, reader.peek());
+		reader.beginArray();
+		assertTrue(reader.hasNext());
+		assertEquals(1, reader.nextLong());
+		assertEquals(JsonPullReader.BEGIN_OBJECT, reader.peek());
+		reader.beginObject();
+		assertFalse(reader.hasNext());
+		reader.endObject();
+		assertFalse(reader.hasNext());
+		reader.endArray();
+
+		assertFalse(reader.hasNext());
+		reader.endObject();
+		assertEquals(JsonPullReader.END_DOCUMENT, reader.peek());
+	}
+
+	public void testEscapes() {
+		JsonPullReader reader = new JsonPullReader(
+				"[\"q\\\"b\\\\s\\/t\\tn\\nr\\rb\\bf\\f\", \"\\u3042\\u00e9\", \"\"]");
+		reader.beginArray();
+		assertEquals("q\"b\\s/t\tn\nr\rb\bf\f", reader.nextString());
+		assertEquals("\u3042\u00e9", reader.nextString());
+		assertEquals("", reader.nextString());
+		reader.endArray();
+	}
+
+	// brackets and quotes inside skipped strings don't end the value early
+	public void testSkipValue() {
+		JsonPullReader reader = new JsonPullReader(
+				"{\"skip\":{\"a\":[1,2,{\"b\":\"}]\\\"{[\"}],\"c\":\"x\"},\"n\":3,\"s\":\"]}\",\"keep\":\"yes\"}");
+		reader.beginObject();
+		assertEquals("skip", reader.nextName());
+		reader.skipValue();
+		assertEquals("n", reader.nextName());
+		reader.skipValue();
+		assertEquals("s", reader.nextName());
+		reader.skipValue();
+		assertEquals("keep", reader.nextName());
+		assertEquals("yes", reader.nextString());
+		reader.endObject();
+	}
+
+	public void testNumbersAsStrings() {
+		JsonPullReader reader = new JsonPullReader("[1343000000000, \"7\", 2.9, \"x\"]");
+		reader.beginArray();
+		assertEquals(1343000000000L, reader.nextLong());
+		assertEquals(7, reader.nextLong());
+		assertEquals(2, reader.nextLong());
+		// not a number
+		assertEquals(0, reader.nextLong());
+		reader.endArray();
+	}
+
+	public void testMalformed() {
+		JsonPullReader reader = new JsonPullReader("{\"a\":\"unterminated");
+		reader.beginObject();
+		assertEquals("a", reader.nextName());
+		try {
+			reader.nextString();
+			fail("unterminated string read");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		reader = new JsonPullReader("[1]");
+		try {
+			reader.beginObject();
+			fail("array read as object");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
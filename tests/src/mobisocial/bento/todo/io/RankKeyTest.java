@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.io;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.ui.TodoListItem;
+
+public class RankKeyTest extends TestCase {
+
+	public void testBetweenBounds() {
+		assertBetween(null, null);
+		assertBetween(null, "V");
+		assertBetween("V", null);
+		assertBetween("A", "B");
+		assertBetween("A", "A1");
+		assertBetween("A1", "A2");
+		assertBetween("Az", "B");
+		assertBetween("1", "10001");
+	}
+
+	public void testEqualKeysGoAfterLow() {
+		String key = RankKey.between("M", "M");
+		assertTrue(key.compareTo("M") > 0);
+		key = RankKey.between("N", "M");
+		assertTrue(key.compareTo("N") > 0);
+	}
+
+	public void testNeverEndsWithLowestDigit() {
+		Random random = new Random(1);
+		String low = null;
+		String high = null;
+		for (int i = 0; i < 1000; i++) {
+			String key = RankKey.between(low, high);
+			assertFalse(key, key.endsWith("0"));
+			// room in front of every key
+			assertBetween(null, key);
+			if (random.nextBoolean()) {
+				low = key;
+			} else {
+				high = key;
+			}
+		}
+	}
+
+	// Adding at the top or the bottom over and over steps one digit at a
+	// time : a digit more every 30 keys at the top (from the middle digit
+	// down), every 61 at the bottom, instead of one every 6 by halving.
+	public void testRepeatedEndsStayShort() {
+		String top = RankKey.between(null, null);
+		String bottom = top;
+		for (int i = 0; i < 1000; i++) {
+			top = assertBetween(null, top);
+			bottom = assertBetween(bottom, null);
+		}
+		assertTrue(top, top.length() <= 1000 / 30 + 2);
+		assertTrue(bottom, bottom.length() <= 1000 / 61 + 2);
+	}
+
+	// Always inserting right after the same item : the gap shrinks from
+	// above, and keys step down a digit at a time as at the top.
+	public void testRepeatedMiddle() {
+		String low = RankKey.between(null, null);
+		String high = RankKey.between(low, null);
+		for (int i = 0; i < 500; i++) {
+			high = assertBetween(low, high);
+		}
+		assertTrue(high, high.length() <= 500 / 30 + 2);
+
+		// between adjacent digits
+		high = "2";
+		for (int i = 0; i < 20; i++) {
+			high = assertBetween("1", high);
+		}
+		assertTrue(high, high.length() <= 2);
+	}
+
+	// always inserting right before the same item, each after the last one
+	public void testRepeatedAppend() {
+		String low = "1";
+		for (int i = 0; i < 1000; i++) {
+			low = assertBetween(low, "2");
+		}
+		assertTrue(low, low.length() <= 1000 / 30 + 2);
+	}
+
+	// nothing sorts between : the key never goes past high
+	public void testNoRoomBelowHigh() {
+		assertEquals("0", RankKey.between(null, "0"));
+		assertEquals("A0", RankKey.between("A", "A0"));
+	}
+
+	public void testSequence() {
+		for (int count : new int[] { 0, 1, 2, 61, 62, 63, 1000, 5000 }) {
+			String[] keys = RankKey.sequence(count);
+			assertEquals(count, keys.length);
+			for (int i = 0; i < count; i++) {
+				assertFalse(keys[i], keys[i].endsWith("0"));
+				if (i > 0) {
+					assertTrue(keys[i - 1] + " < " + keys[i], keys[i - 1].compareTo(keys[i]) < 0);
+				}
+			}
+		}
+	}
+
+	public void testNormalizeRanks() {
+		Bento bento = new Bento();
+		for (int i = 0; i < 5; i++) {
+			bento.todoList.add(BentoSnapshotTest.newItem("todo-" + i, null, 0));
+		}
+		bento.normalizeRanks();
+		for (int i = 1; i < 5; i++) {
+			assertTrue(Bento.compareOrder(bento.todoList.get(i - 1), bento.todoList.get(i)) < 0);
+		}
+
+		// in order already, left alone
+		String rank = bento.todoList.get(2).rank;
+		bento.normalizeRanks();
+		assertSame(rank, bento.todoList.get(2).rank);
+	}
+
+	public void testRankAtKeepsOrder() {
+		Bento bento = BentoTest.newBento(3);
+		for (int position = 0; position <= 3; position++) {
+			TodoListItem item = BentoSnapshotTest.newItem("new-" + position, bento.rankAt(position), 0);
+			assertEquals(position, bento.orderPosition(item));
+		}
+	}
+
+	private static String assertBetween(String low, String high) {
+		String key = RankKey.between(low, high);
+		if (low != null) {
+			assertTrue(low + " < " + key, low.compareTo(key) < 0);
+		}
+		if (high != null) {
+			assertTrue(key + " < " + high, key.compareTo(high) < 0);
+		}
+		return key;
+	}
+}
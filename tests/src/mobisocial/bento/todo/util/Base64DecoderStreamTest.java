@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class Base64DecoderStreamTest extends TestCase {
+	private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	// RFC 4648 section 10
+	public void testVectors() throws Exception {
+		assertDecodes("", "");
+		assertDecodes("f", "Zg==");
+		assertDecodes("fo", "Zm8=");
+		assertDecodes("foo", "Zm9v");
+		assertDecodes("foob", "Zm9vYg==");
+		assertDecodes("fooba", "Zm9vYmE=");
+		assertDecodes("foobar", "Zm9vYmFy");
+		// padding may be left out
+		assertDecodes("f", "Zg");
+		assertDecodes("fooba", "Zm9vYmE");
+	}
+
+	public void testWhitespace() throws Exception {
+		assertDecodes("foobar", "Zm9v\nYmFy\n");
+		assertDecodes("foobar", " Zm\r\n9vY\tmFy ");
+		assertDecodes("", "\n\n");
+	}
+
+	public void testUrlSafe() throws Exception {
+		byte[] bytes = new byte[] { (byte) 0xfb, (byte) 0xff, (byte) 0xbf };
+		assertTrue(Arrays.equals(bytes, readAll(new Base64DecoderStream("-_-_"))));
+		assertTrue(Arrays.equals(bytes, readAll(new Base64DecoderStream("+/+/"))));
+	}
+
+	public void testStopsAtPaddingOrGarbage() throws Exception {
+		assertDecodes("f", "Zg==Zm9v");
+		assertDecodes("foo", "Zm9v.YmFy");
+		assertDecodes("foo", "Zm9v\u3042YmFy");
+		// a lone character carries no whole byte
+		assertDecodes("foo", "Zm9vY");
+	}
+
+	public void testSingleByteReads() throws Exception {
+		Base64DecoderStream in = new Base64DecoderStream("Zm9vYmE=");
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			sb.append((char) b);
+		}
+		assertEquals("fooba", sb.toString());
+		assertEquals(-1, in.read());
+		assertEquals(-1, in.read(new byte[4], 0, 4));
+		assertEquals(0, in.read(new byte[4], 0, 0));
+	}
+
+	// reads that split the 3 byte groups anywhere
+	public void testChunkedReads() throws Exception {
+		Random random = new Random(1);
+		byte[] bytes = new byte[1000];
+		random.nextBytes(bytes);
+		String text = encode(bytes, 76);
+		for (int chunk = 1; chunk <= 8; chunk++) {
+			Base64DecoderStream in = new Base64DecoderStream(text);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[chunk + 2];
+			int n;
+			while ((n = in.read(buffer, 1, chunk)) != -1) {
+				assertTrue(n > 0 && n <= chunk);
+				out.write(buffer, 1, n);
+			}
+			assertTrue("chunk " + chunk, Arrays.equals(bytes, out.toByteArray()));
+		}
+	}
+
+	public void testAvailable() throws Exception {
+		Base64DecoderStream in = new Base64DecoderStream("Zm9vYmFy");
+		assertEquals(6, in.available());
+		in.read();
+		assertEquals(5, in.available());
+		readAll(in);
+		assertEquals(0, in.available());
+	}
+
+	public void testRandomRoundTrip() throws Exception {
+		Random random = new Random(2);
+		for (int i = 0; i < 200; i++) {
+			byte[] bytes = new byte[random.nextInt(300)];
+			random.nextBytes(bytes);
+			int lineLength = random.nextBoolean() ? 0 : 4 * (1 + random.nextInt(20));
+			String text = encode(bytes, lineLength);
+			assertTrue(text, Arrays.equals(bytes, readAll(new Base64DecoderStream(text))));
+		}
+	}
+
+	private static void assertDecodes(String expected, String text) throws Exception {
+		assertEquals(text, expected, new String(readAll(new Base64DecoderStream(text)), "US-ASCII"));
+	}
+
+	private static byte[] readAll(Base64DecoderStream in) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64];
+		int n;
+		while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	// padded, with a line break every lineLength characters (0 for none)
+	private static String encode(byte[] bytes, int lineLength) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes.length; i += 3) {
+			int n = Math.min(3, bytes.length - i);
+			int bits = (bytes[i] & 0xff) << 16;
+			if (n > 1) {
+				bits |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (n > 2) {
+				bits |= bytes[i + 2] & 0xff;
+			}
+			for (int j = 0; j < 4; j++) {
+				if (lineLength > 0 && sb.length() > 0 && (sb.length() + 1) % (lineLength + 1) == 0) {
+					sb.append('\n');
+				}
+				sb.append((j <= n) ? ALPHABET.charAt((bits >> (18 - 6 * j)) & 0x3f) : '=');
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import mobisocial.bento.todo.io.BentoManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+/**
+ * Posted image encoding against the byte budget, with a benchmark of the
+ * sizes and qualities picked for generated images of the posted size
+ * against the quality 100 jpeg posted before. Needs the platform
+ * encoders, runs on a device.
+ */
+public class BitmapHelperTest extends TestCase {
+	private static final int SIZE = BitmapHelper.MAX_IMAGE_WIDTH;
+	private static final int MIN_QUALITY = 40;
+	private static final int MAX_QUALITY = 85;
+
+	public void testEncodeSizeBenchmark() {
+		int budget = BentoManager.DEFAULT_IMAGE_MAX_BYTES;
+		String[] names = { "flat", "gradient", "blocks", "noisy gradient", "noise" };
+		for (int i = 0; i < names.length; i++) {
+			Bitmap bitmap = newImage(i);
+			int fullBytes = BitmapHelper.bitmapToBytes(bitmap).length;
+
+			long start = System.nanoTime();
+			BitmapHelper.EncodedImage encoded = BitmapHelper.encodeImage(bitmap, budget);
+			long nanos = System.nanoTime() - start;
+
+			System.out.println("BitmapHelperTest " + names[i] + " q100 bytes:" + fullBytes
+					+ " encoded bytes:" + encoded.data.length + " " + encoded.format
+					+ " quality:" + encoded.quality + " ms:" + nanos / 1000000.0);
+			assertEncoded(encoded, budget);
+		}
+	}
+
+	// nothing fits : the min quality, as small as it gets
+	public void testOverBudget() {
+		BitmapHelper.EncodedImage encoded = BitmapHelper.encodeImage(newImage(4), 1024);
+		assertEquals(MIN_QUALITY, encoded.quality);
+		assertTrue(encoded.data.length > 1024);
+		assertNotNull(BitmapFactory.decodeByteArray(encoded.data, 0, encoded.data.length));
+	}
+
+	// everything fits : jpeg at the cap
+	public void testUnderBudget() {
+		BitmapHelper.EncodedImage encoded = BitmapHelper.encodeImage(newImage(0), 1024 * 1024);
+		assertEquals(BitmapHelper.FORMAT_JPEG, encoded.format);
+		assertEquals(MAX_QUALITY, encoded.quality);
+	}
+
+	public void testHashImage() throws Exception {
+		assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d",
+				BitmapHelper.hashImage("abc".getBytes("US-ASCII")));
+		assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", BitmapHelper.hashImage(new byte[0]));
+	}
+
+	private static void assertEncoded(BitmapHelper.EncodedImage encoded, int budget) {
+		assertTrue("quality:" + encoded.quality,
+				encoded.quality >= MIN_QUALITY && encoded.quality <= MAX_QUALITY);
+		if (encoded.quality > MIN_QUALITY) {
+			assertTrue("bytes:" + encoded.data.length, encoded.data.length <= budget);
+		}
+		if (BitmapHelper.FORMAT_WEBP.equals(encoded.format)) {
+			assertTrue(UIUtils.isIceCreamSandwich());
+		} else {
+			assertEquals(BitmapHelper.FORMAT_JPEG, encoded.format);
+		}
+		Bitmap decoded = BitmapFactory.decodeByteArray(encoded.data, 0, encoded.data.length);
+		assertNotNull(decoded);
+		assertEquals(SIZE, decoded.getWidth());
+	}
+
+	// from the easiest to compress to the hardest
+	private static Bitmap newImage(int kind) {
+		Random random = new Random(kind);
+		int[] pixels = new int[SIZE * SIZE];
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				int r = x * 255 / SIZE;
+				int g = y * 255 / SIZE;
+				int b = (x + y) * 255 / (2 * SIZE);
+				switch (kind) {
+				case 0:
+					r = 200;
+					g = 120;
+					b = 40;
+					break;
+				case 2:
+					// 20 px tiles
+					int tile = (x / 20) * 31 + (y / 20) * 17;
+					r = (tile * 53) & 0xff;
+					g = (tile * 97) & 0xff;
+					b = (tile * 29) & 0xff;
+					break;
+				case 3:
+					r = clamp(r + random.nextInt(41) - 20);
+					g = clamp(g + random.nextInt(41) - 20);
+					b = clamp(b + random.nextInt(41) - 20);
+					break;
+				case 4:
+					r = random.nextInt(256);
+					g = random.nextInt(256);
+					b = random.nextInt(256);
+					break;
+				default:
+					break;
+				}
+				pixels[y * SIZE + x] = Color.rgb(r, g, b);
+			}
+		}
+		return Bitmap.createBitmap(pixels, SIZE, SIZE, Bitmap.Config.ARGB_8888);
+	}
+
+	private static int clamp(int value) {
+		return Math.max(0, Math.min(255, value));
+	}
+}
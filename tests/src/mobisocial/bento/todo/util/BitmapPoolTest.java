@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * BitmapPool reuse, ImageCache handing over only bitmaps no view shows, and
+ * the allocations of a list scrolling over more thumbnails than the cache
+ * holds. Needs real bitmaps, runs on a device.
+ */
+public class BitmapPoolTest extends TestCase {
+	private static final int THUMBNAIL_SIZE = 64;
+	private static final int THUMBNAILS = 200;
+	private static final int CACHED_THUMBNAILS = 20;
+	private static final int VISIBLE_ROWS = 8;
+
+	@Override
+	protected void setUp() throws Exception {
+		ImageCache.clearCache();
+		BitmapPool.clear();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		ImageCache.clearCache();
+		BitmapPool.clear();
+	}
+
+	public void testGetReusesPut() {
+		int allocations = BitmapPool.getAllocationCount();
+		Bitmap bitmap = BitmapPool.get(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888);
+		assertEquals(allocations + 1, BitmapPool.getAllocationCount());
+
+		BitmapPool.put(bitmap);
+		assertSame(bitmap, BitmapPool.get(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+		assertEquals(allocations + 1, BitmapPool.getAllocationCount());
+
+		// another size or config is another bucket
+		BitmapPool.put(bitmap);
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE + 1, Config.ARGB_8888));
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.RGB_565));
+		assertSame(bitmap, BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+	}
+
+	public void testImmutableNotPooled() {
+		Bitmap bitmap = Bitmap.createBitmap(new int[THUMBNAIL_SIZE * THUMBNAIL_SIZE],
+				THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888);
+		assertFalse(bitmap.isMutable());
+		BitmapPool.put(bitmap);
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+	}
+
+	// an evicted bitmap still shown stays out of the pool until released
+	public void testBoundEvictionPooledOnRelease() {
+		ImageCache.setMaxBytes(2 * thumbnailBytes());
+		Bitmap shown = newThumbnail();
+		Bitmap other = newThumbnail();
+		ImageCache.setImage("shown_1x1", shown);
+		ImageCache.acquire("shown_1x1", shown);
+		ImageCache.setImage("other_1x1", other);
+
+		// evicts shown
+		ImageCache.setImage("third_1x1", newThumbnail());
+		assertFalse(ImageCache.containsImage("shown_1x1"));
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+
+		ImageCache.release(shown);
+		assertSame(shown, BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+
+		// never acquired : whoever holds it keeps it
+		ImageCache.setImage("fourth_1x1", newThumbnail());
+		assertFalse(ImageCache.containsImage("other_1x1"));
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+	}
+
+	public void testReleasedWhileCachedNotPooled() {
+		Bitmap bitmap = newThumbnail();
+		ImageCache.setImage("cached_1x1", bitmap);
+		ImageCache.acquire("cached_1x1", bitmap);
+		ImageCache.acquire("cached_1x1", bitmap);
+		ImageCache.release(bitmap);
+		ImageCache.release(bitmap);
+		assertNull(BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+
+		ImageCache.removeImage("cached_1x1");
+		assertSame(bitmap, BitmapPool.poll(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888));
+	}
+
+	// Rows bind thumbnails as ImageLoader does, missing ones are drawn into
+	// BitmapPool.get() as resizing does. Once the cache and the visible
+	// rows are filled, scrolling allocates nothing.
+	public void testScrollingAllocations() {
+		ImageCache.setMaxBytes(CACHED_THUMBNAILS * thumbnailBytes());
+		Bitmap[] rows = new Bitmap[VISIBLE_ROWS];
+
+		int start = BitmapPool.getAllocationCount();
+		scroll(rows);
+		int firstPass = BitmapPool.getAllocationCount() - start;
+		scroll(rows);
+		scroll(rows);
+		int laterPasses = BitmapPool.getAllocationCount() - start - firstPass;
+
+		System.out.println("BitmapPoolTest thumbnails:" + THUMBNAILS + " cached:" + CACHED_THUMBNAILS
+				+ " rows:" + VISIBLE_ROWS + " first pass allocations:" + firstPass
+				+ " later passes allocations:" + laterPasses + " " + BitmapPool.getStats());
+		assertTrue("first pass allocations:" + firstPass, firstPass <= CACHED_THUMBNAILS + VISIBLE_ROWS + 1);
+		assertEquals(0, laterPasses);
+
+		for (Bitmap bitmap : rows) {
+			ImageCache.release(bitmap);
+		}
+	}
+
+	// down the whole list, a row recycled for each new position
+	private static void scroll(Bitmap[] rows) {
+		for (int position = 0; position < THUMBNAILS; position++) {
+			String key = ImageCache.makeKey("todo-" + position, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+			Bitmap bitmap = ImageCache.getImage(key);
+			if (bitmap == null) {
+				bitmap = BitmapPool.get(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888);
+				ImageCache.setImage(key, bitmap);
+			}
+			int row = position % rows.length;
+			ImageCache.acquire(key, bitmap);
+			if (rows[row] != null) {
+				ImageCache.release(rows[row]);
+			}
+			rows[row] = bitmap;
+		}
+	}
+
+	private static Bitmap newThumbnail() {
+		return Bitmap.createBitmap(THUMBNAIL_SIZE, THUMBNAIL_SIZE, Config.ARGB_8888);
+	}
+
+	private static long thumbnailBytes() {
+		return (long) THUMBNAIL_SIZE * THUMBNAIL_SIZE * 4;
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2012 Kazuya (Kaz) Yokoyama <kazuya.yokoyama@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.bento.todo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+/**
+ * ImageDownload against a local stand-in for an image server : one canned
+ * response per test, written on a plain ServerSocket.
+ */
+public class ImageDownloadTest extends TestCase {
+	private static final int BODY_BYTES = 100;
+
+	private ServerSocket mServerSocket;
+	private Thread mServerThread;
+	private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+	private URL mUrl;
+
+	// the response, and whether to keep the connection open after it
+	private volatile String mHead;
+	private volatile byte[] mBody;
+	private volatile boolean bStall;
+
+	@Override
+	protected void setUp() throws Exception {
+		mServerSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+		mUrl = new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/image.jpg");
+		mServerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		});
+		mServerThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServerSocket.close();
+		synchronized (mSockets) {
+			for (Socket socket : mSockets) {
+				socket.close();
+			}
+		}
+		mServerThread.join(5000);
+	}
+
+	public void testTwoPassesCounted() throws Exception {
+		respond(200, BODY_BYTES, false);
+		ImageDownload download = new ImageDownload(mUrl);
+		download.setMaxBytes(BODY_BYTES * 5 / 2);
+
+		// bounds, then decode : both passes count
+		assertEquals(BODY_BYTES, readAll(download.open()).length);
+		assertEquals(BODY_BYTES, download.getBytesRead());
+		byte[] bytes = readAll(download.open());
+		assertEquals(BODY_BYTES * 2, download.getBytesRead());
+		for (int i = 0; i < bytes.length; i++) {
+			assertEquals((byte) i, bytes[i]);
+		}
+
+		// a third pass would go over, refused from the length alone
+		try {
+			download.open();
+			fail("third pass opened");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(BODY_BYTES * 2, download.getBytesRead());
+	}
+
+	public void testContentLengthOverCap() throws Exception {
+		respond(200, BODY_BYTES, false);
+		ImageDownload download = new ImageDownload(mUrl);
+		download.setMaxBytes(BODY_BYTES - 1);
+		try {
+			download.open();
+			fail("opened over the cap");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, download.getBytesRead());
+	}
+
+	// no length up front, stopped while reading
+	public void testChunkedOverCap() throws Exception {
+		respond(200, BODY_BYTES, true);
+		ImageDownload download = new ImageDownload(mUrl);
+		download.setMaxBytes(BODY_BYTES - 1);
+		InputStream in = download.open();
+		try {
+			readAll(in);
+			fail("read over the cap");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			in.close();
+		}
+	}
+
+	public void testNotFound() throws Exception {
+		respond(404, 0, false);
+		try {
+			new ImageDownload(mUrl).open();
+			fail("opened a 404");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("404"));
+		}
+	}
+
+	public void testReadTimeout() throws Exception {
+		respond(200, BODY_BYTES, false);
+		bStall = true;
+		ImageDownload download = new ImageDownload(mUrl);
+		download.setTimeouts(2000, 300);
+		InputStream in = download.open();
+		long start = System.currentTimeMillis();
+		try {
+			readAll(in);
+			fail("read a stalled body");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			in.close();
+		}
+		assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
+	// a read blocked on a stalled server fails once cancelled, and so does
+	// any later pass
+	public void testCancel() throws Exception {
+		respond(200, BODY_BYTES, false);
+		bStall = true;
+		final ImageDownload download = new ImageDownload(mUrl);
+		download.setTimeouts(2000, 1000);
+		InputStream in = download.open();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					// go on
+				}
+				download.cancel();
+			}
+		}).start();
+
+		// woken up by the cancel, or by the read timeout where disconnect()
+		// doesn't reach a blocked read (desktop JVMs)
+		try {
+			readAll(in);
+			fail("read past cancel");
+		} catch (IOException e) {
+			// expected
+		} finally {
+			in.close();
+		}
+		assertTrue(download.isCancelled());
+		assertTrue(download.getBytesRead() < BODY_BYTES);
+
+		try {
+			download.open();
+			fail("opened after cancel");
+		} catch (InterruptedIOException e) {
+			// expected
+		}
+	}
+
+	// -----
+
+	// a body of bytes 0, 1, 2 ... , stalled halfway if bStall is set
+	private void respond(int code, int bodyBytes, boolean bChunked) {
+		byte[] body = new byte[bodyBytes];
+		for (int i = 0; i < bodyBytes; i++) {
+			body[i] = (byte) i;
+		}
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(code).append(code == 200 ? " OK" : " Not Found").append("\r\n");
+		head.append("Content-Type: image/jpeg\r\n");
+		if (bChunked) {
+			head.append("Transfer-Encoding: chunked\r\n");
+		} else {
+			head.append("Content-Length: ").append(bodyBytes).append("\r\n");
+		}
+		head.append("Connection: close\r\n\r\n");
+		mHead = head.toString();
+		mBody = bChunked ? chunked(body) : body;
+	}
+
+	private static byte[] chunked(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			for (int i = 0; i < body.length; i += 16) {
+				int n = Math.min(16, body.length - i);
+				out.write((Integer.toHexString(n) + "\r\n").getBytes("US-ASCII"));
+				out.write(body, i, n);
+				out.write("\r\n".getBytes("US-ASCII"));
+			}
+			out.write("0\r\n\r\n".getBytes("US-ASCII"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e.toString());
+		}
+		return out.toByteArray();
+	}
+
+	private void serve() {
+		while (true) {
+			Socket socket;
+			try {
+				socket = mServerSocket.accept();
+			} catch (IOException e) {
+				// closed by tearDown
+				return;
+			}
+			synchronized (mSockets) {
+				mSockets.add(socket);
+			}
+			try {
+				readRequest(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+				out.write(mHead.getBytes("US-ASCII"));
+				if (bStall) {
+					// half the body, then nothing until tearDown
+					out.write(mBody, 0, mBody.length / 2);
+					out.flush();
+					continue;
+				}
+				out.write(mBody);
+				out.flush();
+				socket.close();
+			} catch (IOException e) {
+				// the client went away
+			}
+		}
+	}
+
+	// up to the blank line, a GET has no body
+	private static void readRequest(InputStream in) throws IOException {
+		int matched = 0;
+		int b;
+		while (matched < 4 && (b = in.read()) != -1) {
+			if (b == "\r\n\r\n".charAt(matched)) {
+				matched++;
+			} else {
+				matched = (b == '\r') ? 1 : 0;
+			}
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[32];
+		int n;
+		while ((n = in.read(buffer, 0, buffer.length)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+}